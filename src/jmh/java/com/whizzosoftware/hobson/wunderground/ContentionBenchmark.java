@@ -0,0 +1,122 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.device.MockDeviceManager;
+import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
+import com.whizzosoftware.hobson.api.event.MockEventManager;
+import com.whizzosoftware.hobson.api.plugin.MockHobsonPlugin;
+import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
+import com.whizzosoftware.hobson.api.variable.DeviceProxyVariable;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.VariableMask;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks the refresh/response cycle with one thread and with several threads sharing a plugin. Comparing the
+ * throughput of the two shows whether the lock-free request lifecycle scales or collapses under contention (the
+ * stress test only checks that it stays correct).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+    private static final int STATION_COUNT = 16;
+
+    private WeatherUndergroundPlugin plugin;
+    private MockDeviceProxy[] devices;
+    private AtomicLong readingTime;
+    private final Queue<Object> responses = new ConcurrentLinkedQueue<>();
+    private MockHttpResponse successResponse;
+
+    @Setup
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        readingTime = new AtomicLong(now);
+        devices = new MockDeviceProxy[STATION_COUNT];
+        MockDeviceManager dm = new MockDeviceManager();
+        MockEventManager em = new MockEventManager();
+        MockHttpChannel channel = new MockHttpChannel();
+        channel.setListener(new MockHttpChannel.Listener() {
+            @Override
+            public void onSend(URI uri, Object context) {
+                responses.add(context);
+            }
+        });
+
+        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin.setDeviceManager(dm);
+        wsPlugin.setEventManager(em);
+
+        plugin = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        plugin.setDeviceManager(dm);
+        plugin.setEventManager(em);
+        plugin.setMaxConcurrentUploads(4);
+        plugin.setMaxSilence(0);
+
+        for (int i=0; i < STATION_COUNT; i++) {
+            MockDeviceProxy device = new MockDeviceProxy(wsPlugin, "device" + i, DeviceType.WEATHER_STATION);
+            dm.publishDevice(device, null, null);
+            devices[i] = device;
+            device.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(device.getContext(), WeatherVariable.OUTDOOR_TEMP.getVariableName()), VariableMask.READ_ONLY, 70.0 + i, now));
+            if (i == 0) {
+                plugin.setDeviceContext(device.getContext());
+                plugin.setPwsId("pws0");
+                plugin.setPwsPassword("password0");
+            } else {
+                plugin.addStation(new Station(device.getContext(), "pws" + i, "password" + i));
+            }
+        }
+
+        successResponse = new MockHttpResponse(200, "success");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int refreshAndRespond() {
+        return cycle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int refreshAndRespondContended() {
+        return cycle();
+    }
+
+    /**
+     * Publishes a new reading for every station (readings are only uploaded once), refreshes all stations and
+     * completes any uploads that have been sent (by this or another thread).
+     *
+     * @return the number of responses delivered
+     */
+    private int cycle() {
+        for (int i=0; i < devices.length; i++) {
+            devices[i].setVariableValue(WeatherVariable.OUTDOOR_TEMP.getVariableName(), 70.0 + i, readingTime.incrementAndGet());
+        }
+        plugin.onRefresh(System.currentTimeMillis());
+        int count = 0;
+        Object context;
+        while ((context = responses.poll()) != null) {
+            plugin.onHttpResponse(successResponse, context);
+            count++;
+        }
+        return count;
+    }
+}
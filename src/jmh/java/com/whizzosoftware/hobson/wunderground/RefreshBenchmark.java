@@ -0,0 +1,170 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.device.MockDeviceManager;
+import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
+import com.whizzosoftware.hobson.api.event.MockEventManager;
+import com.whizzosoftware.hobson.api.plugin.MockHobsonPlugin;
+import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
+import com.whizzosoftware.hobson.api.variable.DeviceProxyVariable;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableState;
+import com.whizzosoftware.hobson.api.variable.VariableMask;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the refresh hot path: reading station variables, building update URLs and handling responses.
+ * Run with "mvn -Pbenchmark verify" (the gc profiler is enabled so allocation rates are reported alongside
+ * throughput).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RefreshBenchmark {
+    private static final WeatherVariable[] VARIABLES = WeatherVariable.all();
+
+    /**
+     * The number of variables each station publishes.
+     */
+    @Param({"1", "6", "13"})
+    public int variableCount;
+
+    /**
+     * The number of stations the plugin uploads for.
+     */
+    @Param({"1", "50"})
+    public int stationCount;
+
+    private long now;
+    private long variableTime;
+    private MockDeviceProxy[] devices;
+    private MockHttpChannel channel;
+    private WeatherUndergroundPlugin plugin;
+    private DeviceVariableState variableState;
+    private StringBuilder url;
+    private MockHttpResponse successResponse;
+
+    @Setup
+    public void setUp() {
+        now = System.currentTimeMillis();
+        variableTime = now;
+        devices = new MockDeviceProxy[stationCount];
+        channel = new MockHttpChannel();
+
+        MockDeviceManager dm = new MockDeviceManager();
+        MockEventManager em = new MockEventManager();
+        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin.setDeviceManager(dm);
+        wsPlugin.setEventManager(em);
+
+        plugin = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        plugin.setDeviceManager(dm);
+        plugin.setEventManager(em);
+        plugin.setMaxConcurrentUploads(stationCount);
+        // variables are re-published with the same values, so disable deadband suppression to measure full uploads
+        plugin.setMaxSilence(0);
+
+        for (int i=0; i < stationCount; i++) {
+            MockDeviceProxy device = new MockDeviceProxy(wsPlugin, "device" + i, DeviceType.WEATHER_STATION);
+            dm.publishDevice(device, null, null);
+            devices[i] = device;
+            for (int j=0; j < variableCount; j++) {
+                device.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(device.getContext(), VARIABLES[j].getVariableName()), VariableMask.READ_ONLY, 50.5 + j, now));
+            }
+            if (i == 0) {
+                plugin.setDeviceContext(device.getContext());
+                plugin.setPwsId("pws0");
+                plugin.setPwsPassword("password0");
+                variableState = device.getVariableState(VARIABLES[0].getVariableName());
+            } else {
+                plugin.addStation(new Station(device.getContext(), "pws" + i, "password" + i));
+            }
+        }
+
+        url = new StringBuilder(256);
+        successResponse = new MockHttpResponse(200, "success");
+    }
+
+    /**
+     * A full refresh cycle: every station publishes a new reading, is read and uploaded and every upload receives a
+     * successful response.
+     */
+    @Benchmark
+    public int refreshCycle() {
+        publishReadings();
+        channel.clear();
+        plugin.onRefresh(now);
+        int count = channel.getURICount();
+        for (int i=0; i < count; i++) {
+            plugin.onHttpResponse(successResponse, channel.getContext(i));
+        }
+        return count;
+    }
+
+    /**
+     * A refresh with no new data (every station still has a request outstanding).
+     */
+    @Benchmark
+    public void refreshWithPendingRequests() {
+        if (!plugin.hasPendingRequest()) {
+            channel.clear();
+            plugin.onRefresh(now);
+        }
+        plugin.onRefresh(now);
+    }
+
+    /**
+     * Moves the clock forward. Variables are periodically re-published so they never become old enough to be
+     * considered expired.
+     */
+    private void advanceClock() {
+        now++;
+        if (now - variableTime > 300000) {
+            publishReadings();
+        }
+    }
+
+    /**
+     * Re-publishes every variable with the current time. Readings are only uploaded once, so a refresh that should
+     * upload needs newer ones.
+     */
+    private void publishReadings() {
+        variableTime = now++;
+        for (MockDeviceProxy device : devices) {
+            for (int j=0; j < variableCount; j++) {
+                device.setVariableValue(VARIABLES[j].getVariableName(), 50.5 + j, variableTime);
+            }
+        }
+        variableState = devices[0].getVariableState(VARIABLES[0].getVariableName());
+    }
+
+    /**
+     * Appends the first mapped variable, which every device publishes regardless of variableCount.
+     */
+    @Benchmark
+    public void appendVariableToURL(Blackhole bh) throws Exception {
+        advanceClock();
+        url.setLength(0);
+        bh.consume(plugin.appendVariableToURL(variableState, url, now));
+    }
+
+    @Benchmark
+    public void onHttpResponse() {
+        plugin.onHttpResponse(successResponse, null);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for reading and classifying an upload response body. The "decode" benchmarks copy the body and decode
+ * it into a String before classifying it (the way responses were handled before bodies were classified in place);
+ * the "inPlace" benchmarks read the body into a reused buffer and classify the raw bytes. Compare the
+ * gc.alloc.rate.norm figures reported by the gc profiler to see the allocation per response.
+ *
+ * The "plugin" benchmarks measure the plugin's two production paths end to end: onHttpResponse() for responses
+ * from the Hobson HTTP client, whose bodies are only available already decoded, and onHttpResult() for responses
+ * read by the pooled HTTP channel. Only the latter avoids decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The service whose success response is classified.
+     */
+    @Param({"wunderground", "pwsweather"})
+    public String service;
+
+    private Uploader uploader;
+    private ByteArrayInputStream in;
+    private byte[] bytes;
+    private ResponseBody buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        String body;
+        if ("pwsweather".equals(service)) {
+            uploader = new PwsWeatherUploader();
+            body = "<html>\n<head>\n<title>PWS Weather Station Update</title>\n</head>\n<body>\nData Logged and posted in checkdata\n</body>\n</html>\n";
+        } else {
+            uploader = new WundergroundUploader("http://localhost/update", "http://localhost/rt");
+            body = "success\n";
+        }
+        bytes = body.getBytes(UTF8);
+        in = new ByteArrayInputStream(bytes);
+        buffer = new ResponseBody();
+        buffer.append(in, bytes.length);
+    }
+
+    /**
+     * A plugin handling Weather Underground success responses. The responses aren't for a request the plugin sent,
+     * so they're classified and counted but there's no request to complete.
+     */
+    @State(Scope.Thread)
+    public static class PluginState {
+        private WeatherUndergroundPlugin plugin;
+        private MockHttpResponse response;
+        private ResponseBody buffer;
+
+        @Setup
+        public void setUp() throws IOException {
+            String body = "success\n";
+            plugin = new WeatherUndergroundPlugin("plugin", null, null, new MockHttpChannel());
+            response = new MockHttpResponse(200, body);
+            byte[] bytes = body.getBytes(UTF8);
+            buffer = new ResponseBody();
+            buffer.append(new ByteArrayInputStream(bytes), bytes.length);
+        }
+    }
+
+    /**
+     * The default path: the Hobson HTTP client hands the body over as a String, which is wrapped and classified.
+     */
+    @Benchmark
+    public void pluginOnHttpResponse(PluginState s) {
+        s.plugin.onHttpResponse(s.response, null);
+    }
+
+    /**
+     * The persistent connections path: the pooled HTTP channel reads the body into a reused buffer.
+     */
+    @Benchmark
+    public void pluginOnHttpResult(PluginState s) {
+        s.plugin.onHttpResult(200, s.buffer, null);
+    }
+
+    @Benchmark
+    public UploadOutcome classifyDecoded() {
+        return uploader.classify(200, new ResponseBody(new String(bytes, UTF8)));
+    }
+
+    @Benchmark
+    public UploadOutcome classifyInPlace() {
+        return uploader.classify(200, buffer);
+    }
+
+    @Benchmark
+    public UploadOutcome readAndClassifyDecoded() {
+        in.reset();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf, 0, buf.length)) > -1) {
+            out.write(buf, 0, len);
+        }
+        return uploader.classify(200, new ResponseBody(new String(out.toByteArray(), UTF8)));
+    }
+
+    @Benchmark
+    public UploadOutcome readAndClassifyInPlace() throws IOException {
+        in.reset();
+        buffer.clear();
+        while (buffer.append(in, Integer.MAX_VALUE) > -1) {}
+        return uploader.classify(200, buffer);
+    }
+}
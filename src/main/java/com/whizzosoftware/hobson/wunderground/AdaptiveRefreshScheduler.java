@@ -0,0 +1,245 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+/**
+ * Decides how long to wait between periodic station refreshes. After each refresh the interval is:
+ *
+ * - doubled if the upload services appear to be struggling (high response latency or transient error rate)
+ * - halved if most stations had significant variable changes
+ * - lengthened by half if few or no stations had significant changes
+ *
+ * and is always kept within the configured bounds. Latency and error rate are exponentially weighted moving
+ * averages over recent responses.
+ */
+class AdaptiveRefreshScheduler {
+    static final double FAST_CHANGE_RATIO = 0.75;
+    static final double IDLE_CHANGE_RATIO = 0.25;
+    static final double ERROR_RATE_THRESHOLD = 0.25;
+    static final long LATENCY_THRESHOLD_MS = 5000;
+    private static final double SMOOTHING = 0.2;
+
+    enum Reason {
+        /**
+         * No refresh has completed yet.
+         */
+        INITIAL,
+        /**
+         * Most stations had significant changes so the interval was shortened.
+         */
+        FAST_CHANGE,
+        /**
+         * Some stations had significant changes so the interval was kept.
+         */
+        STEADY,
+        /**
+         * Few stations had significant changes so the interval was lengthened.
+         */
+        IDLE,
+        /**
+         * The upload services were slow or failing so the interval was lengthened.
+         */
+        BACKOFF
+    }
+
+    private long minIntervalMs;
+    private long maxIntervalMs;
+    private long intervalMs;
+    private volatile long nextRefreshAt;
+    private int refreshedCount;
+    private int changedCount;
+    private double errorRate;
+    private double latencyMs;
+    private volatile Decision decision;
+
+    /**
+     * Constructor.
+     *
+     * @param minIntervalMs the shortest allowed refresh interval
+     * @param maxIntervalMs the longest allowed refresh interval
+     * @param initialIntervalMs the interval to start with
+     */
+    AdaptiveRefreshScheduler(long minIntervalMs, long maxIntervalMs, long initialIntervalMs) {
+        setBounds(minIntervalMs, maxIntervalMs, initialIntervalMs);
+    }
+
+    /**
+     * Sets the interval bounds. The current interval is clamped to them; the reason for it is kept so that the
+     * interval learned so far survives later configuration changes.
+     *
+     * @param minIntervalMs the shortest allowed refresh interval
+     * @param maxIntervalMs the longest allowed refresh interval
+     * @param initialIntervalMs the interval to use if no decision has been made yet
+     */
+    synchronized void setBounds(long minIntervalMs, long maxIntervalMs, long initialIntervalMs) {
+        this.minIntervalMs = Math.max(0, Math.min(minIntervalMs, maxIntervalMs));
+        this.maxIntervalMs = Math.max(this.minIntervalMs, maxIntervalMs);
+        if (decision == null || decision.getReason() == Reason.INITIAL) {
+            this.intervalMs = clamp(initialIntervalMs);
+            this.decision = new Decision(Reason.INITIAL, this.intervalMs, Double.NaN, errorRate, latencyMs, nextRefreshAt);
+        } else {
+            this.intervalMs = clamp(intervalMs);
+            this.decision = new Decision(decision.getReason(), this.intervalMs, decision.getChangeRatio(), errorRate, latencyMs, nextRefreshAt);
+        }
+    }
+
+    long getMinIntervalMs() {
+        return minIntervalMs;
+    }
+
+    long getMaxIntervalMs() {
+        return maxIntervalMs;
+    }
+
+    /**
+     * Indicates whether the next refresh is due.
+     *
+     * @param now the current time
+     *
+     * @return a boolean
+     */
+    boolean isDue(long now) {
+        return (now >= nextRefreshAt);
+    }
+
+    /**
+     * Returns how long to wait until the next refresh is due. A caller that checks {@link #isDue(long)} slightly
+     * early should wait this long rather than a full interval, otherwise the effective interval is doubled.
+     *
+     * @param now the current time
+     *
+     * @return the delay in milliseconds (0 if the refresh is already due)
+     */
+    long getDelayMs(long now) {
+        return Math.max(0, nextRefreshAt - now);
+    }
+
+    /**
+     * Records the result of refreshing a station.
+     *
+     * @param changed whether the station had significant variable changes
+     */
+    synchronized void onStationRefresh(boolean changed) {
+        refreshedCount++;
+        if (changed) {
+            changedCount++;
+        }
+    }
+
+    /**
+     * Records the outcome of an upload request.
+     *
+     * @param isTransientFailure whether the request failed in a way that suggests the service is struggling
+     * @param latencyMs the request latency (or a negative value if unknown)
+     */
+    synchronized void onResponse(boolean isTransientFailure, long latencyMs) {
+        errorRate += SMOOTHING * ((isTransientFailure ? 1 : 0) - errorRate);
+        if (latencyMs >= 0) {
+            this.latencyMs += SMOOTHING * (latencyMs - this.latencyMs);
+        }
+    }
+
+    /**
+     * Decides the next refresh interval once a refresh has completed.
+     *
+     * @param now the current time
+     *
+     * @return the decision
+     */
+    synchronized Decision onRefreshComplete(long now) {
+        double changeRatio = (refreshedCount > 0) ? (double)changedCount / refreshedCount : 0;
+        Reason reason;
+        if (errorRate >= ERROR_RATE_THRESHOLD || latencyMs >= LATENCY_THRESHOLD_MS) {
+            reason = Reason.BACKOFF;
+            intervalMs = clamp(intervalMs * 2);
+        } else if (changeRatio >= FAST_CHANGE_RATIO) {
+            reason = Reason.FAST_CHANGE;
+            intervalMs = clamp(intervalMs / 2);
+        } else if (changeRatio < IDLE_CHANGE_RATIO) {
+            reason = Reason.IDLE;
+            intervalMs = clamp(intervalMs + intervalMs / 2);
+        } else {
+            reason = Reason.STEADY;
+        }
+        refreshedCount = 0;
+        changedCount = 0;
+        nextRefreshAt = now + intervalMs;
+        decision = new Decision(reason, intervalMs, changeRatio, errorRate, latencyMs, nextRefreshAt);
+        return decision;
+    }
+
+    /**
+     * Returns the most recent decision.
+     *
+     * @return a Decision
+     */
+    Decision getDecision() {
+        return decision;
+    }
+
+    private long clamp(long interval) {
+        return Math.max(minIntervalMs, Math.min(maxIntervalMs, interval));
+    }
+
+    /**
+     * An immutable record of a refresh interval decision and the inputs it was based on.
+     */
+    static class Decision {
+        private final Reason reason;
+        private final long intervalMs;
+        private final double changeRatio;
+        private final double errorRate;
+        private final double latencyMs;
+        private final long nextRefreshAt;
+
+        Decision(Reason reason, long intervalMs, double changeRatio, double errorRate, double latencyMs, long nextRefreshAt) {
+            this.reason = reason;
+            this.intervalMs = intervalMs;
+            this.changeRatio = changeRatio;
+            this.errorRate = errorRate;
+            this.latencyMs = latencyMs;
+            this.nextRefreshAt = nextRefreshAt;
+        }
+
+        Reason getReason() {
+            return reason;
+        }
+
+        long getIntervalMs() {
+            return intervalMs;
+        }
+
+        /**
+         * Returns the fraction of stations that had significant changes in the refresh.
+         *
+         * @return a double (or NaN if no refresh has completed)
+         */
+        double getChangeRatio() {
+            return changeRatio;
+        }
+
+        double getErrorRate() {
+            return errorRate;
+        }
+
+        double getLatencyMs() {
+            return latencyMs;
+        }
+
+        long getNextRefreshAt() {
+            return nextRefreshAt;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: interval=%dms changeRatio=%.2f errorRate=%.2f latency=%.0fms", reason, intervalMs, changeRatio, errorRate, latencyMs);
+        }
+    }
+}
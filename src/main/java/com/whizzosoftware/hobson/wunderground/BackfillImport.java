@@ -0,0 +1,473 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads the observations in a raw station log with their original timestamps. The log is streamed through a
+ * StationLogReader and rows are sent as a pipeline: up to a fixed number are in flight at once and a token bucket
+ * limits the overall rate. The listener can decline a row (e.g. when no upload slot is free), in which case it stays
+ * pending and is sent on a later pump. Transiently failed rows are retried with backoff and handed back to the
+ * listener once their retries are exhausted.
+ *
+ * Rows can complete out of order, so progress is checkpointed at the end of the last row before which every row has
+ * completed. The checkpoint is written to a properties file every CHECKPOINT_INTERVAL rows (and when the import
+ * stops) so that a restarted import resumes where it left off rather than re-sending the whole log.
+ */
+class BackfillImport {
+    private static final Logger logger = LoggerFactory.getLogger(BackfillImport.class);
+
+    static final int CHECKPOINT_INTERVAL = 100;
+    private static final int MAX_PENDING_PER_SLOT = 8;
+    private static final long PROGRESS_LOG_INTERVAL_MS = 60000;
+
+    private final File logFile;
+    private final File checkpointFile;
+    private final int window;
+    private final int ratePerMinute;
+    private final RetryPolicy retryPolicy;
+    private final Listener listener;
+    private StationLogReader reader;
+    private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+    private long nextSequence;
+    private int inFlight;
+    private boolean eof;
+    private boolean finished;
+    private boolean stopped;
+    private double permits = 1;
+    private long lastPermitTime = Station.NO_UPDATE;
+    private long checkpointOffset;
+    private long completedCount;
+    private long succeededCount;
+    private long failedCount;
+    private long skippedCount;
+    private long baseSkippedCount;
+    private int uncheckpointedCount;
+    private long startedAt = Station.NO_UPDATE;
+    private long startCompletedCount;
+    private long lastProgressLog;
+    private Future<?> pumpTask;
+
+    /**
+     * Constructor.
+     *
+     * @param logFile the station log to import
+     * @param checkpointFile the file to record progress in
+     * @param window the maximum number of rows that can be in flight at once
+     * @param ratePerMinute the maximum number of rows to send per minute
+     * @param retryPolicy the policy for retrying transiently failed rows
+     * @param listener the listener that sends rows
+     */
+    BackfillImport(File logFile, File checkpointFile, int window, int ratePerMinute, RetryPolicy retryPolicy, Listener listener) {
+        this.logFile = logFile;
+        this.checkpointFile = checkpointFile;
+        this.window = Math.max(1, window);
+        this.ratePerMinute = Math.max(1, ratePerMinute);
+        this.retryPolicy = retryPolicy;
+        this.listener = listener;
+    }
+
+    File getLogFile() {
+        return logFile;
+    }
+
+    int getRatePerMinute() {
+        return ratePerMinute;
+    }
+
+    /**
+     * Opens the log, resuming from the checkpoint if it was recorded for the same log.
+     *
+     * @throws IOException on failure
+     */
+    synchronized void open() throws IOException {
+        Properties p = loadCheckpoint();
+        if (p != null && logFile.getAbsolutePath().equals(p.getProperty("file"))) {
+            checkpointOffset = parseLong(p.getProperty("offset"));
+            completedCount = parseLong(p.getProperty("rows"));
+            succeededCount = parseLong(p.getProperty("succeeded"));
+            failedCount = parseLong(p.getProperty("failed"));
+            baseSkippedCount = skippedCount = parseLong(p.getProperty("skipped"));
+            if (checkpointOffset > logFile.length()) {
+                logger.warn("Station log {} is shorter than its checkpoint; importing it from the beginning", logFile);
+                checkpointOffset = completedCount = succeededCount = failedCount = baseSkippedCount = skippedCount = 0;
+            } else if (checkpointOffset == logFile.length() && Boolean.parseBoolean(p.getProperty("complete"))) {
+                logger.debug("Station log {} has already been imported", logFile);
+                finished = true;
+                return;
+            } else if (checkpointOffset > 0) {
+                logger.info("Resuming import of {} from offset {} ({} rows already imported)", logFile, checkpointOffset, completedCount);
+            }
+        }
+        reader = new StationLogReader(logFile, checkpointOffset);
+    }
+
+    synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Sets the task that pumps the import periodically. The task is cancelled when the import stops or finishes
+     * (including when it stops by itself, e.g. because its credentials were rejected).
+     *
+     * @param pumpTask the task
+     */
+    synchronized void setPumpTask(Future<?> pumpTask) {
+        this.pumpTask = pumpTask;
+        if (finished || stopped) {
+            cancelPumpTask();
+        }
+    }
+
+    /**
+     * Sends as many rows as the in-flight window and rate limit allow. This should be called periodically; it is
+     * also called whenever a row completes so that the pipeline is refilled immediately.
+     *
+     * @param now the current time
+     */
+    void pump(long now) {
+        List<Entry> toSend = null;
+        synchronized (this) {
+            if (reader == null || finished || stopped) {
+                return;
+            }
+            if (startedAt == Station.NO_UPDATE) {
+                startedAt = lastProgressLog = now;
+                startCompletedCount = completedCount;
+            }
+            refillPermits(now);
+            if (listener.isAcceptingImports()) {
+                while (inFlight < window) {
+                    // a row read while there are no permits stays pending and is sent first on a later pump
+                    Entry e = nextEntry(now);
+                    if (e == null || permits < 1) {
+                        break;
+                    }
+                    e.inFlight = true;
+                    inFlight++;
+                    permits -= 1;
+                    if (toSend == null) {
+                        toSend = new ArrayList<>(window);
+                    }
+                    toSend.add(e);
+                }
+            }
+            checkFinished();
+            if (now - lastProgressLog >= PROGRESS_LOG_INTERVAL_MS) {
+                lastProgressLog = now;
+                logger.info("Import of {}: {}", logFile, getProgressDescription(now));
+            }
+        }
+
+        // rows are sent outside the lock since a failure can be reported synchronously
+        if (toSend != null) {
+            for (int i=0; i < toSend.size(); i++) {
+                Entry e = toSend.get(i);
+                if (!listener.sendImport(this, e.sequence, e.row.getObservedAt(), e.row.getParams())) {
+                    returnUnsent(toSend.subList(i, toSend.size()));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns rows that the listener declined to send to the pending list, along with their rate limit permits.
+     *
+     * @param entries the rows
+     */
+    synchronized private void returnUnsent(List<Entry> entries) {
+        for (Entry e : entries) {
+            if (e.inFlight) {
+                e.inFlight = false;
+                inFlight--;
+                permits = Math.min(window, permits + 1);
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a row upload.
+     *
+     * @param sequence the row's sequence number (as passed to Listener.sendImport())
+     * @param outcome the outcome
+     * @param now the current time
+     */
+    void onComplete(long sequence, UploadOutcome outcome, long now) {
+        Entry failed = null;
+        synchronized (this) {
+            Entry e = findEntry(sequence);
+            if (stopped || e == null || !e.inFlight) {
+                return;
+            }
+            e.inFlight = false;
+            inFlight--;
+
+            if (outcome == UploadOutcome.SUCCESS) {
+                succeededCount++;
+                e.done = true;
+            } else if (outcome == UploadOutcome.AUTH_ERROR) {
+                logger.error("Credentials rejected while importing {}; stopping import", logFile);
+                stop();
+                return;
+            } else if (retryPolicy.shouldRetry(outcome, e.retries)) {
+                e.notBefore = now + retryPolicy.getDelay(outcome, e.retries);
+                e.retries++;
+            } else {
+                failedCount++;
+                e.done = true;
+                if (outcome != UploadOutcome.REJECTED) {
+                    failed = e;
+                }
+            }
+            advanceCheckpoint();
+        }
+
+        if (failed != null) {
+            listener.onImportFailed(failed.row.getObservedAt(), failed.row.getParams());
+        }
+        pump(now);
+    }
+
+    /**
+     * Stops the import, recording a checkpoint so that it can be resumed later. Rows that are in flight are treated
+     * as not having been sent.
+     */
+    synchronized void stop() {
+        if (reader != null && !finished && !stopped) {
+            saveCheckpoint(false);
+            reader.close();
+        }
+        stopped = true;
+        cancelPumpTask();
+    }
+
+    /**
+     * Returns the import's progress counters.
+     *
+     * @param now the current time
+     *
+     * @return a map of counter name to value
+     */
+    synchronized Map<String,Long> getSnapshot(long now) {
+        Map<String,Long> m = new HashMap<>();
+        m.put("import.rows", completedCount);
+        m.put("import.succeeded", succeededCount);
+        m.put("import.failed", failedCount);
+        m.put("import.skipped", skippedCount);
+        m.put("import.inFlight", (long)inFlight);
+        m.put("import.offset", checkpointOffset);
+        m.put("import.length", logFile.length());
+        m.put("import.rowsPerMinute", getRowsPerMinute(now));
+        m.put("import.complete", finished ? 1L : 0L);
+        return m;
+    }
+
+    private long getRowsPerMinute(long now) {
+        long elapsed = (startedAt != Station.NO_UPDATE) ? now - startedAt : 0;
+        return (elapsed > 0) ? (completedCount - startCompletedCount) * 60000 / elapsed : 0;
+    }
+
+    private String getProgressDescription(long now) {
+        long length = logFile.length();
+        return completedCount + " rows imported (" + succeededCount + " succeeded, " + failedCount + " failed, " + skippedCount + " skipped), " +
+            (length > 0 ? checkpointOffset * 100 / length : 100) + "% complete, " + getRowsPerMinute(now) + " rows/min";
+    }
+
+    private void refillPermits(long now) {
+        if (lastPermitTime != Station.NO_UPDATE && now > lastPermitTime) {
+            permits = Math.min(window, permits + (now - lastPermitTime) * ratePerMinute / 60000.0);
+        }
+        lastPermitTime = now;
+    }
+
+    /**
+     * Returns the next row to send: the oldest unsent row (or row that is due to be retried) or, failing that, the
+     * next row in the log.
+     *
+     * @param now the current time
+     *
+     * @return an Entry (or null if there's nothing to send)
+     */
+    private Entry nextEntry(long now) {
+        for (Entry e : pending) {
+            if (!e.done && !e.inFlight && e.notBefore <= now) {
+                return e;
+            }
+        }
+        if (!eof && pending.size() < window * MAX_PENDING_PER_SLOT) {
+            try {
+                StationLogReader.Row row = reader.next();
+                if (row != null) {
+                    Entry e = new Entry(nextSequence++, row, baseSkippedCount + reader.getSkippedCount());
+                    pending.addLast(e);
+                    return e;
+                }
+                eof = true;
+            } catch (IOException e) {
+                logger.error("Error reading " + logFile + "; stopping import", e);
+                stop();
+            }
+        }
+        return null;
+    }
+
+    private Entry findEntry(long sequence) {
+        for (Entry e : pending) {
+            if (e.sequence == sequence) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void advanceCheckpoint() {
+        while (!pending.isEmpty() && pending.peekFirst().done) {
+            Entry e = pending.pollFirst();
+            checkpointOffset = e.row.getEndOffset();
+            skippedCount = e.skippedBefore;
+            completedCount++;
+            uncheckpointedCount++;
+        }
+        if (!checkFinished() && uncheckpointedCount >= CHECKPOINT_INTERVAL) {
+            saveCheckpoint(false);
+        }
+    }
+
+    private boolean checkFinished() {
+        if (!finished && !stopped && eof && pending.isEmpty()) {
+            checkpointOffset = reader.getOffset();
+            skippedCount = baseSkippedCount + reader.getSkippedCount();
+            saveCheckpoint(true);
+            reader.close();
+            finished = true;
+            cancelPumpTask();
+            logger.info("Import of {} complete: {} rows imported ({} succeeded, {} failed, {} skipped)", logFile, completedCount, succeededCount, failedCount, skippedCount);
+        }
+        return finished;
+    }
+
+    private void cancelPumpTask() {
+        if (pumpTask != null) {
+            pumpTask.cancel(false);
+            pumpTask = null;
+        }
+    }
+
+    private Properties loadCheckpoint() {
+        if (checkpointFile.exists()) {
+            Properties p = new Properties();
+            try (InputStream is = new FileInputStream(checkpointFile)) {
+                p.load(is);
+                return p;
+            } catch (IOException e) {
+                logger.error("Unable to read import checkpoint; importing from the beginning", e);
+            }
+        }
+        return null;
+    }
+
+    private void saveCheckpoint(boolean complete) {
+        Properties p = new Properties();
+        p.setProperty("file", logFile.getAbsolutePath());
+        p.setProperty("offset", Long.toString(checkpointOffset));
+        p.setProperty("rows", Long.toString(completedCount));
+        p.setProperty("succeeded", Long.toString(succeededCount));
+        p.setProperty("failed", Long.toString(failedCount));
+        p.setProperty("skipped", Long.toString(skippedCount));
+        p.setProperty("complete", Boolean.toString(complete));
+
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            p.store(os, "Weather Underground import checkpoint");
+        } catch (IOException e) {
+            logger.error("Unable to write import checkpoint", e);
+            return;
+        }
+        if (!tmp.renameTo(checkpointFile)) {
+            logger.error("Unable to write import checkpoint: {}", checkpointFile);
+            return;
+        }
+        uncheckpointedCount = 0;
+    }
+
+    private static long parseLong(String s) {
+        if (s != null) {
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException ignored) {}
+        }
+        return 0;
+    }
+
+    /**
+     * A row that has been read from the log but not yet checkpointed.
+     */
+    private static class Entry {
+        final long sequence;
+        final StationLogReader.Row row;
+        final long skippedBefore;
+        boolean inFlight;
+        boolean done;
+        int retries;
+        long notBefore;
+
+        Entry(long sequence, StationLogReader.Row row, long skippedBefore) {
+            this.sequence = sequence;
+            this.row = row;
+            this.skippedBefore = skippedBefore;
+        }
+    }
+
+    interface Listener {
+        /**
+         * Indicates whether rows can currently be sent (e.g. the upload service is reachable).
+         *
+         * @return a boolean
+         */
+        boolean isAcceptingImports();
+
+        /**
+         * Sends a row. The outcome must be reported by calling onComplete() with the row's sequence number.
+         *
+         * @param source the import the row belongs to
+         * @param sequence the row's sequence number
+         * @param observedAt the time of the observation
+         * @param params the observation's variable query parameters
+         *
+         * @return false if the row can't be sent right now (it will be offered again on a later pump)
+         */
+        boolean sendImport(BackfillImport source, long sequence, long observedAt, String params);
+
+        /**
+         * Called when a row could not be sent after exhausting its retries.
+         *
+         * @param observedAt the time of the observation
+         * @param params the observation's variable query parameters
+         */
+        void onImportFailed(long observedAt, String params);
+    }
+}
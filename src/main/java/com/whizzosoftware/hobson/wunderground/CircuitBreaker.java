@@ -0,0 +1,104 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+/**
+ * A circuit breaker for the update service. After a number of consecutive transient failures the circuit opens
+ * and requests are refused. Once the open period has elapsed a single probe request is allowed through: if it
+ * succeeds the circuit closes, otherwise it re-opens for twice as long (up to a maximum).
+ */
+class CircuitBreaker {
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private int failureThreshold;
+    private long openDurationMs;
+    private long maxOpenDurationMs;
+    private volatile State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long currentOpenDurationMs;
+    private long openedAt;
+
+    CircuitBreaker(int failureThreshold, long openDurationMs, long maxOpenDurationMs) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+        this.maxOpenDurationMs = maxOpenDurationMs;
+        this.currentOpenDurationMs = openDurationMs;
+    }
+
+    /**
+     * Indicates whether a request can be sent. When the open period has elapsed, this will return true exactly once
+     * so that a single probe request is sent.
+     *
+     * @param now the current time
+     *
+     * @return a boolean
+     */
+    boolean allowRequest(long now) {
+        // the closed state is checked without locking since it's by far the most common case
+        return (state == State.CLOSED) || allowRequestWhenOpen(now);
+    }
+
+    synchronized private boolean allowRequestWhenOpen(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now - openedAt >= currentOpenDurationMs) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records a response that shows the service is reachable. This includes responses that reject the request
+     * (e.g. for bad credentials) since the service itself is working.
+     */
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentOpenDurationMs = openDurationMs;
+    }
+
+    /**
+     * Records a request that failed because the service is unreachable or unhealthy.
+     *
+     * @param now the current time
+     */
+    synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            currentOpenDurationMs = Math.min(currentOpenDurationMs * 2, maxOpenDurationMs);
+            open(now);
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open(now);
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    boolean isClosed() {
+        return (state == State.CLOSED);
+    }
+
+    private void open(long now) {
+        state = State.OPEN;
+        openedAt = now;
+    }
+}
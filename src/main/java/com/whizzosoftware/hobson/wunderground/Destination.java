@@ -0,0 +1,182 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A station's binding to an upload service. Each destination has its own compiled URL templates, queued request,
+ * in-flight requests and rate limit so that a station's uploads to one service are independent of the others.
+ *
+ * As with Station, the queued/in-flight state is changed with atomic compare-and-set operations since it is
+ * driven from several threads.
+ */
+class Destination {
+    private final Station station;
+    private final UploadService service;
+    private final UpdateUrlTemplate urlTemplate;
+    private final UpdateUrlTemplate realtimeUrlTemplate;
+    private final AtomicReference<UploadRequest> queuedRequest = new AtomicReference<>();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+    private volatile boolean authFailed;
+    private volatile long lastQueuedAt = Station.NO_UPDATE;
+
+    /**
+     * Constructor.
+     *
+     * @param station the station
+     * @param service the upload service
+     * @param id the station's ID at the service
+     * @param key the station's password or key at the service
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    Destination(Station station, UploadService service, String id, String key) throws UnsupportedEncodingException {
+        Uploader uploader = service.getUploader();
+        this.station = station;
+        this.service = service;
+        this.urlTemplate = uploader.createUrlTemplate(id, key, false);
+        this.realtimeUrlTemplate = uploader.supportsRealtime() ? uploader.createUrlTemplate(id, key, true) : urlTemplate;
+    }
+
+    Station getStation() {
+        return station;
+    }
+
+    UploadService getService() {
+        return service;
+    }
+
+    Uploader getUploader() {
+        return service.getUploader();
+    }
+
+    UpdateUrlTemplate getUrlTemplate(boolean realtime) {
+        return realtime ? realtimeUrlTemplate : urlTemplate;
+    }
+
+    /**
+     * Indicates whether the service has rejected the station's credentials.
+     *
+     * @return a boolean
+     */
+    boolean hasAuthFailed() {
+        return authFailed;
+    }
+
+    void setAuthFailed(boolean authFailed) {
+        this.authFailed = authFailed;
+    }
+
+    /**
+     * Indicates whether the destination has a queued request or no free in-flight slots.
+     *
+     * @param window the maximum number of requests that can be in flight for the destination
+     *
+     * @return a boolean
+     */
+    boolean isBusy(int window) {
+        return (inFlightCount.get() >= window || queuedRequest.get() != null);
+    }
+
+    /**
+     * Indicates whether the service's minimum upload interval has elapsed since the last upload was queued.
+     *
+     * @param now the current time
+     *
+     * @return a boolean
+     */
+    boolean isDue(long now) {
+        long last = lastQueuedAt;
+        return (last == Station.NO_UPDATE || now - last >= getUploader().getMinInterval());
+    }
+
+    int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * Reserves one of the destination's in-flight request slots.
+     *
+     * @param window the maximum number of requests that can be in flight for the destination
+     *
+     * @return true if a slot was reserved
+     */
+    boolean tryAcquireInFlight(int window) {
+        int count;
+        do {
+            count = inFlightCount.get();
+            if (count >= window) {
+                return false;
+            }
+        } while (!inFlightCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    void decrementInFlightCount() {
+        int count;
+        do {
+            count = inFlightCount.get();
+        } while (count > 0 && !inFlightCount.compareAndSet(count, count - 1));
+    }
+
+    boolean hasQueuedRequest() {
+        return (queuedRequest.get() != null);
+    }
+
+    UploadRequest getQueuedRequest() {
+        return queuedRequest.get();
+    }
+
+    /**
+     * Queues a new upload for the destination.
+     *
+     * @param request the request
+     * @param now the current time
+     *
+     * @return false if another request is already queued
+     */
+    boolean queueUpload(UploadRequest request, long now) {
+        if (queuedRequest.compareAndSet(null, request)) {
+            lastQueuedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues a request for the destination (e.g. a retry) without affecting its rate limit.
+     *
+     * @param request the request
+     *
+     * @return false if another request is already queued
+     */
+    boolean queueRequest(UploadRequest request) {
+        return queuedRequest.compareAndSet(null, request);
+    }
+
+    /**
+     * Removes a queued request.
+     *
+     * @param request the request expected to be queued
+     *
+     * @return false if the request was no longer queued (i.e. another thread dequeued it)
+     */
+    boolean dequeueRequest(UploadRequest request) {
+        return queuedRequest.compareAndSet(request, null);
+    }
+
+    @Override
+    public String toString() {
+        return station + " -> " + service;
+    }
+}
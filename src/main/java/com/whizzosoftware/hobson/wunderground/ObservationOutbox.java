@@ -0,0 +1,212 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A durable, fixed-capacity queue of observations that could not be sent. Observations are stored as fixed-size
+ * records in a memory-mapped file that is used as a ring buffer: records are appended at the tail and consumed from
+ * the head and, once the capacity is reached, the oldest record is evicted to make room for the newest.
+ *
+ * An observation is on disk by the time append() returns: the record is forced to the file before the header that
+ * makes it visible, so a crash or power loss can't lose an appended observation or expose a partially written one.
+ * Removals aren't forced, so after a crash the most recently removed records may be replayed again (i.e. delivery
+ * is at least once).
+ */
+class ObservationOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(ObservationOutbox.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF8");
+    private static final int MAGIC = 0x57554f42;
+    private static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 512;
+    private static final int RECORD_HEADER_SIZE = 12;
+
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private long head;
+    private long tail;
+    private long evictedCount;
+
+    /**
+     * Opens (or creates) an outbox file.
+     *
+     * @param f the file
+     * @param capacity the maximum number of records the outbox can hold
+     *
+     * @throws IOException on failure
+     */
+    ObservationOutbox(File f, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(f, "rw");
+        boolean exists = (file.length() >= HEADER_SIZE);
+        this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+
+        if (exists && buffer.getInt(0) == MAGIC && buffer.getInt(4) == capacity) {
+            head = buffer.getLong(8);
+            tail = buffer.getLong(16);
+        } else {
+            if (exists) {
+                logger.warn("Outbox file {} is invalid or has a different capacity; discarding its contents", f);
+            }
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, capacity);
+            writeHeader();
+        }
+    }
+
+    /**
+     * Appends an observation to the outbox, evicting the oldest record if the outbox is full. The observation has
+     * been written to disk when this returns.
+     *
+     * @param pwsId the PWS ID the observation is for
+     * @param observedAt the time of the observation
+     * @param params the observation's variable query parameters
+     *
+     * @return false if the observation was too large to store
+     */
+    synchronized boolean append(String pwsId, long observedAt, String params) {
+        byte[] id = pwsId.getBytes(UTF8);
+        byte[] p = params.getBytes(UTF8);
+        if (RECORD_HEADER_SIZE + id.length + p.length > RECORD_SIZE) {
+            return false;
+        }
+
+        if (tail - head >= capacity) {
+            // the evicted record's slot is reused, so it's dropped from the header before being overwritten
+            head++;
+            evictedCount++;
+            writeHeader();
+            buffer.force();
+        }
+
+        int pos = getRecordPosition(tail);
+        buffer.putLong(pos, observedAt);
+        buffer.putShort(pos + 8, (short)id.length);
+        buffer.putShort(pos + 10, (short)p.length);
+        for (int i=0; i < id.length; i++) {
+            buffer.put(pos + RECORD_HEADER_SIZE + i, id[i]);
+        }
+        for (int i=0; i < p.length; i++) {
+            buffer.put(pos + RECORD_HEADER_SIZE + id.length + i, p[i]);
+        }
+        buffer.force();
+        tail++;
+        writeHeader();
+        buffer.force();
+
+        return true;
+    }
+
+    /**
+     * Returns the oldest record in the outbox without removing it.
+     *
+     * @return a Record (or null if the outbox is empty)
+     */
+    synchronized Record peek() {
+        if (tail > head) {
+            int pos = getRecordPosition(head);
+            long observedAt = buffer.getLong(pos);
+            byte[] id = new byte[buffer.getShort(pos + 8)];
+            byte[] p = new byte[buffer.getShort(pos + 10)];
+            for (int i=0; i < id.length; i++) {
+                id[i] = buffer.get(pos + RECORD_HEADER_SIZE + i);
+            }
+            for (int i=0; i < p.length; i++) {
+                p[i] = buffer.get(pos + RECORD_HEADER_SIZE + id.length + i);
+            }
+            return new Record(head, new String(id, UTF8), observedAt, new String(p, UTF8));
+        }
+        return null;
+    }
+
+    /**
+     * Removes a record from the outbox. Only the oldest record can be removed; this is a no-op if the record has
+     * already been removed or evicted.
+     *
+     * @param sequence the record sequence number
+     */
+    synchronized void remove(long sequence) {
+        if (sequence == head && tail > head) {
+            head++;
+            writeHeader();
+        }
+    }
+
+    synchronized int size() {
+        return (int)(tail - head);
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    synchronized void close() {
+        try {
+            buffer.force();
+            file.close();
+        } catch (IOException e) {
+            logger.error("Error closing outbox file", e);
+        }
+    }
+
+    private int getRecordPosition(long sequence) {
+        return HEADER_SIZE + (int)(sequence % capacity) * RECORD_SIZE;
+    }
+
+    private void writeHeader() {
+        buffer.putLong(8, head);
+        buffer.putLong(16, tail);
+    }
+
+    static class Record {
+        private long sequence;
+        private String pwsId;
+        private long observedAt;
+        private String params;
+
+        Record(long sequence, String pwsId, long observedAt, String params) {
+            this.sequence = sequence;
+            this.pwsId = pwsId;
+            this.observedAt = observedAt;
+            this.params = params;
+        }
+
+        long getSequence() {
+            return sequence;
+        }
+
+        String getPwsId() {
+            return pwsId;
+        }
+
+        long getObservedAt() {
+            return observedAt;
+        }
+
+        String getParams() {
+            return params;
+        }
+    }
+}
@@ -0,0 +1,528 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.plugin.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HttpChannel that keeps idle keep-alive connections to each host open between requests and caches DNS
+ * lookups for a fixed TTL, so that periodic uploads don't pay for a DNS lookup and TCP (and TLS) handshake every
+ * time. Requests are sent on a pool of daemon threads and their results are delivered to a Listener from those
+ * threads.
+ *
+ * Only requests without a body are supported, which covers the update services' GET protocols. A request that
+ * fails on a reused connection before any response is received (i.e. the server closed the idle connection) is
+ * retried once on a new connection.
+ *
+ * Response bodies are read into a buffer that each pool thread reuses, so delivering a result doesn't allocate a
+ * copy of the body or decode it; the body passed to the Listener is only valid for the duration of the call. The
+ * update services' responses are tiny, so a response whose body exceeds MAX_BODY_BYTES fails the request (and its
+ * connection is closed) rather than being buffered.
+ *
+ * TLS connections verify that the server's certificate matches the host name, as HttpsURLConnection does.
+ */
+class PooledHttpChannel implements HttpChannel {
+    private static final Logger logger = LoggerFactory.getLogger(PooledHttpChannel.class);
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    static final int MAX_BODY_BYTES = 65536;
+
+    private final Listener listener;
+    private final int maxIdlePerHost;
+    private final long idleTimeoutMs;
+    private final long dnsTtlMs;
+    private final int timeoutMs;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String,Deque<Connection>> idleConnections = new ConcurrentHashMap<>();
+    private final Map<String,DnsEntry> dnsCache = new ConcurrentHashMap<>();
+    private final AtomicLong poolHits = new AtomicLong();
+    private final AtomicLong poolMisses = new AtomicLong();
+    private final AtomicLong staleConnections = new AtomicLong();
+    private final AtomicLong dnsHits = new AtomicLong();
+    private final AtomicLong dnsMisses = new AtomicLong();
+    private final ThreadLocal<ResponseBody> bodyBuffer = new ThreadLocal<ResponseBody>() {
+        @Override
+        protected ResponseBody initialValue() {
+            return new ResponseBody();
+        }
+    };
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor.
+     *
+     * @param listener the listener to deliver results to
+     * @param maxIdlePerHost the maximum number of idle connections kept open to a single host
+     * @param idleTimeoutMs the time after which an idle connection is closed rather than reused
+     * @param dnsTtlMs the time for which a host's resolved address is reused
+     * @param timeoutMs the connect and read timeout
+     */
+    PooledHttpChannel(Listener listener, int maxIdlePerHost, long idleTimeoutMs, long dnsTtlMs, int timeoutMs) {
+        this.listener = listener;
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.dnsTtlMs = dnsTtlMs;
+        this.timeoutMs = timeoutMs;
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Weather Underground HTTP");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void sendHttpRequest(final URI uri, final HttpRequest.Method method, final Map<String, String> headers, final Object context) {
+        try {
+            execute(uri, method, headers, context);
+        } catch (RejectedExecutionException e) {
+            listener.onHttpRequestFailure(e, context);
+        }
+    }
+
+    private void execute(final URI uri, final HttpRequest.Method method, final Map<String, String> headers, final Object context) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Response response;
+                try {
+                    response = send(uri, method.toString(), headers);
+                } catch (Throwable t) {
+                    listener.onHttpRequestFailure(t, context);
+                    return;
+                }
+                listener.onHttpResult(response.statusCode, response.body, context);
+            }
+        });
+    }
+
+    /**
+     * Stops accepting requests and closes all idle connections. Requests already in progress are allowed to
+     * complete.
+     */
+    void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+        for (Deque<Connection> idle : idleConnections.values()) {
+            synchronized (idle) {
+                for (Connection c : idle) {
+                    c.close();
+                }
+                idle.clear();
+            }
+        }
+    }
+
+    long getPoolHits() {
+        return poolHits.get();
+    }
+
+    long getPoolMisses() {
+        return poolMisses.get();
+    }
+
+    long getStaleConnections() {
+        return staleConnections.get();
+    }
+
+    long getDnsHits() {
+        return dnsHits.get();
+    }
+
+    long getDnsMisses() {
+        return dnsMisses.get();
+    }
+
+    /**
+     * Returns a snapshot of the channel's connection pool and DNS cache metrics.
+     *
+     * @return a Map of metric name to value
+     */
+    Map<String,Long> getSnapshot() {
+        Map<String,Long> m = new LinkedHashMap<>();
+        m.put("pool.hits", poolHits.get());
+        m.put("pool.misses", poolMisses.get());
+        m.put("pool.stale", staleConnections.get());
+        m.put("dns.hits", dnsHits.get());
+        m.put("dns.misses", dnsMisses.get());
+        return m;
+    }
+
+    private Response send(URI uri, String method, Map<String,String> headers) throws IOException {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        String host = uri.getHost();
+        int port = (uri.getPort() > -1) ? uri.getPort() : (secure ? 443 : 80);
+        String key = uri.getScheme() + "://" + host + ":" + port;
+        byte[] request = encodeRequest(uri, method, headers, host, port, secure);
+
+        Connection c = pollIdleConnection(key);
+        if (c != null) {
+            poolHits.incrementAndGet();
+            try {
+                return exchange(c, key, request);
+            } catch (StaleConnectionException e) {
+                logger.debug("Pooled connection to {} was closed by the server; reconnecting", key);
+                staleConnections.incrementAndGet();
+            }
+        }
+
+        poolMisses.incrementAndGet();
+        c = connect(host, port, secure);
+        try {
+            return exchange(c, key, request);
+        } catch (StaleConnectionException e) {
+            throw (e.getCause() instanceof IOException) ? (IOException)e.getCause() : new EOFException("Connection closed by server before a response was received");
+        }
+    }
+
+    /**
+     * Sends a request on a connection and reads the response. The connection is returned to the pool if it can be
+     * reused and closed otherwise.
+     */
+    private Response exchange(Connection c, String key, byte[] request) throws IOException {
+        boolean reusable = false;
+        try {
+            String statusLine;
+            try {
+                c.out.write(request);
+                c.out.flush();
+                statusLine = readLine(c.in);
+            } catch (SocketTimeoutException e) {
+                // the server may have received the request, so it isn't re-sent
+                throw e;
+            } catch (IOException e) {
+                throw new StaleConnectionException(e);
+            }
+            if (statusLine == null) {
+                throw new StaleConnectionException(null);
+            }
+            Response r = readResponse(statusLine, c.in);
+            reusable = r.keepAlive;
+            return r;
+        } finally {
+            if (reusable) {
+                releaseConnection(key, c);
+            } else {
+                c.close();
+            }
+        }
+    }
+
+    private Connection pollIdleConnection(String key) {
+        Deque<Connection> idle = idleConnections.get(key);
+        if (idle != null) {
+            long now = System.currentTimeMillis();
+            synchronized (idle) {
+                Connection c;
+                while ((c = idle.pollLast()) != null) {
+                    if (now - c.lastUsed < idleTimeoutMs && !c.socket.isClosed()) {
+                        return c;
+                    }
+                    c.close();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void releaseConnection(String key, Connection c) {
+        Deque<Connection> idle = idleConnections.get(key);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            Deque<Connection> d = idleConnections.putIfAbsent(key, idle);
+            if (d != null) {
+                idle = d;
+            }
+        }
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            if (!shutdown && idle.size() < maxIdlePerHost) {
+                idle.addLast(c);
+                return;
+            }
+        }
+        c.close();
+    }
+
+    private Connection connect(String host, int port, boolean secure) throws IOException {
+        InetAddress address = resolve(host);
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(address, port), timeoutMs);
+            socket.setSoTimeout(timeoutMs);
+            if (secure) {
+                SSLSocket sslSocket = (SSLSocket)((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                socket = sslSocket;
+                SSLParameters params = sslSocket.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(params);
+            }
+            return new Connection(socket);
+        } catch (IOException e) {
+            socket.close();
+            // the address may be out of date
+            dnsCache.remove(host);
+            throw e;
+        }
+    }
+
+    /**
+     * Resolves a host name, using a cached address if it hasn't expired.
+     *
+     * @param host the host name
+     *
+     * @return an InetAddress
+     *
+     * @throws IOException if the host can't be resolved
+     */
+    InetAddress resolve(String host) throws IOException {
+        long now = System.currentTimeMillis();
+        DnsEntry e = dnsCache.get(host);
+        if (e != null && now < e.expiresAt) {
+            dnsHits.incrementAndGet();
+            return e.address;
+        }
+        dnsMisses.incrementAndGet();
+        InetAddress address = InetAddress.getByName(host);
+        dnsCache.put(host, new DnsEntry(address, now + dnsTtlMs));
+        return address;
+    }
+
+    private byte[] encodeRequest(URI uri, String method, Map<String,String> headers, String host, int port, boolean secure) {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append(method).append(' ');
+        String path = uri.getRawPath();
+        sb.append((path == null || path.length() == 0) ? "/" : path);
+        if (uri.getRawQuery() != null) {
+            sb.append('?').append(uri.getRawQuery());
+        }
+        sb.append(" HTTP/1.1\r\nHost: ").append(host);
+        if (port != (secure ? 443 : 80)) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\nConnection: keep-alive\r\nUser-Agent: Hobson\r\n");
+        if (headers != null) {
+            for (Map.Entry<String,String> h : headers.entrySet()) {
+                sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            }
+        }
+        sb.append("\r\n");
+        return sb.toString().getBytes(LATIN1);
+    }
+
+    private Response readResponse(String statusLine, InputStream in) throws IOException {
+        int sp = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || sp < 0 || statusLine.length() < sp + 4) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(statusLine.substring(sp + 1, sp + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid HTTP status line: " + statusLine);
+        }
+
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+        boolean chunked = false;
+        long contentLength = -1;
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            int ix = line.indexOf(':');
+            if (ix > 0) {
+                String name = line.substring(0, ix).trim();
+                String value = line.substring(ix + 1).trim();
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    contentLength = Long.parseLong(value);
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = !"close".equalsIgnoreCase(value) && (keepAlive || "keep-alive".equalsIgnoreCase(value));
+                }
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed while reading response headers");
+        }
+
+        ResponseBody body = bodyBuffer.get();
+        body.clear();
+        if (statusCode == 204 || statusCode == 304 || statusCode < 200) {
+            // no body
+        } else if (chunked) {
+            readChunked(in, body);
+        } else if (contentLength > MAX_BODY_BYTES) {
+            throw new IOException("Response body of " + contentLength + " bytes exceeds the maximum of " + MAX_BODY_BYTES);
+        } else if (contentLength > -1) {
+            copy(in, body, contentLength);
+        } else {
+            copy(in, body, Long.MAX_VALUE);
+            keepAlive = false;
+        }
+        return new Response(statusCode, body, keepAlive);
+    }
+
+    private void readChunked(InputStream in, ResponseBody body) throws IOException {
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed while reading chunked response");
+            }
+            int ix = line.indexOf(';');
+            long size = Long.parseLong((ix > -1 ? line.substring(0, ix) : line).trim(), 16);
+            if (size == 0) {
+                // skip any trailers
+                while ((line = readLine(in)) != null && line.length() > 0) {}
+                return;
+            }
+            copy(in, body, size);
+            readLine(in);
+        }
+    }
+
+    /**
+     * Reads a number of bytes (or, if count is Long.MAX_VALUE, everything until the stream ends) into a body. At most
+     * one byte more than MAX_BODY_BYTES is ever buffered.
+     *
+     * @throws IOException if the stream ends early or the body exceeds MAX_BODY_BYTES
+     */
+    private void copy(InputStream in, ResponseBody out, long count) throws IOException {
+        while (count > 0) {
+            int len = out.append(in, (int)Math.min(MAX_BODY_BYTES + 1 - out.length(), count));
+            if (len < 0) {
+                if (count == Long.MAX_VALUE) {
+                    return;
+                }
+                throw new EOFException("Connection closed while reading response body");
+            }
+            if (out.length() > MAX_BODY_BYTES) {
+                throw new IOException("Response body exceeds the maximum of " + MAX_BODY_BYTES + " bytes");
+            }
+            if (count != Long.MAX_VALUE) {
+                count -= len;
+            }
+        }
+    }
+
+    /**
+     * Reads a CRLF (or LF) terminated line.
+     *
+     * @param in the stream to read from
+     *
+     * @return the line without its terminator (or null if the stream ended before any bytes were read)
+     *
+     * @throws IOException on failure
+     */
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char)b);
+        }
+        return (sb.length() > 0) ? sb.toString() : null;
+    }
+
+    /**
+     * The interface used to deliver request results.
+     */
+    interface Listener {
+        void onHttpResult(int statusCode, ResponseBody body, Object context);
+        void onHttpRequestFailure(Throwable cause, Object context);
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static class DnsEntry {
+        final InetAddress address;
+        final long expiresAt;
+
+        DnsEntry(InetAddress address, long expiresAt) {
+            this.address = address;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Response {
+        final int statusCode;
+        final ResponseBody body;
+        final boolean keepAlive;
+
+        Response(int statusCode, ResponseBody body, boolean keepAlive) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+    /**
+     * Indicates that a connection failed before any of the response was received.
+     */
+    private static class StaleConnectionException extends IOException {
+        StaleConnectionException(IOException cause) {
+            super(cause);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An uploader for PWSWeather. Its update protocol is the Weather Underground one with an additional action
+ * parameter; it has no real-time endpoint and requires an explicit observation date.
+ */
+class PwsWeatherUploader implements Uploader {
+    static final String ID = "pwsweather";
+    static final String UPDATE_URL = "http://www.pwsweather.com/pwsupdate/pwsupdate.php";
+    static final long MIN_INTERVAL_MS = 60000;
+
+    private final String updateUrl;
+
+    PwsWeatherUploader() {
+        this(UPDATE_URL);
+    }
+
+    PwsWeatherUploader(String updateUrl) {
+        this.updateUrl = updateUrl;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "PWSWeather";
+    }
+
+    @Override
+    public UpdateUrlTemplate createUrlTemplate(String id, String key, boolean realtime) throws UnsupportedEncodingException {
+        return new UpdateUrlTemplate(updateUrl, id, key);
+    }
+
+    @Override
+    public boolean supportsRealtime() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsDateNow() {
+        return false;
+    }
+
+    @Override
+    public void appendSuffix(StringBuilder url, boolean realtime, long realtimeIntervalMs) {
+        url.append("&softwaretype=Hobson&action=updateraw");
+    }
+
+    @Override
+    public long getMinInterval() {
+        return MIN_INTERVAL_MS;
+    }
+
+    /**
+     * PWSWeather answers every request with a 200 status; failures are reported with an "ERROR" line in the body.
+     */
+    @Override
+    public UploadOutcome classify(int statusCode, ResponseBody body) {
+        if (statusCode == 200) {
+            if (body != null) {
+                int ix = body.indexOf("ERROR", 0);
+                if (ix > -1) {
+                    return (body.indexOf("Station ID", ix) > -1 || body.indexOf("Password", ix) > -1) ? UploadOutcome.AUTH_ERROR : UploadOutcome.REJECTED;
+                }
+            }
+            return UploadOutcome.SUCCESS;
+        } else {
+            return UploadOutcome.classify(statusCode, body);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces variable change notifications for stations into RapidFire uploads. The first change for a station
+ * schedules a flush after the coalescing window (or later if the station's minimum upload interval hasn't elapsed);
+ * any further changes before the flush are folded into it.
+ */
+class RapidFireScheduler {
+    private ScheduledExecutorService executor;
+    private long coalesceWindowMs;
+    private long minIntervalMs;
+    private Listener listener;
+    private volatile boolean active = true;
+
+    RapidFireScheduler(ScheduledExecutorService executor, long coalesceWindowMs, long minIntervalMs, Listener listener) {
+        this.executor = executor;
+        this.coalesceWindowMs = coalesceWindowMs;
+        this.minIntervalMs = minIntervalMs;
+        this.listener = listener;
+    }
+
+    long getMinIntervalMs() {
+        return minIntervalMs;
+    }
+
+    /**
+     * Notifies the scheduler that one of a station's variables has changed.
+     *
+     * @param station the station
+     * @param now the current time
+     */
+    void onChange(final Station station, long now) {
+        if (active && station.markRapidFireDirty()) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (active) {
+                        flush(station, System.currentTimeMillis());
+                    }
+                }
+            }, getFlushDelay(station, now), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    long getFlushDelay(Station station, long now) {
+        long sinceLast = now - station.getLastRapidFireSend();
+        return Math.max(coalesceWindowMs, minIntervalMs - sinceLast);
+    }
+
+    /**
+     * Flushes a station's changes. If the listener can't refresh the station right now (e.g. it still has a
+     * request outstanding or another thread is reading it) the flush is rescheduled so the changes aren't lost.
+     *
+     * @param station the station
+     * @param now the current time
+     */
+    void flush(Station station, long now) {
+        // the flag is cleared first so that any change made while the station is being read schedules a new flush
+        station.clearRapidFireDirty();
+        station.setLastRapidFireSend(now);
+        if (!listener.onRapidFireFlush(station, now)) {
+            onChange(station, now);
+        }
+    }
+
+    /**
+     * Stops the scheduler. Any flushes that are already scheduled will be ignored.
+     */
+    void shutdown() {
+        active = false;
+    }
+
+    interface Listener {
+        /**
+         * Called when a station's changes should be uploaded.
+         *
+         * @param station the station
+         * @param now the current time
+         *
+         * @return false if the station could not be refreshed and the flush should be retried
+         */
+        boolean onRapidFireFlush(Station station, long now);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * An HTTP response body that can be classified without decoding it. The update services' responses are short ASCII
+ * strings ("success", "INVALIDPASSWORDID|...", "ERROR: ...") so the patterns uploaders look for can be matched
+ * directly against the raw bytes; the body is only decoded into a String when toString() is called (i.e. when a
+ * failure is logged).
+ *
+ * A body is either a reusable buffer that a response is read into (the buffer is cleared and refilled for each
+ * response, so its contents are only valid until the next response is read on the same thread) or a wrapper around
+ * an already decoded String. Only PooledHttpChannel reads responses itself; responses delivered by the Hobson HTTP
+ * client (i.e. when persistent connections are disabled) have already been decoded and are wrapped.
+ */
+class ResponseBody {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 512;
+    private static final int MAX_RETAINED_CAPACITY = 65536;
+
+    private byte[] bytes;
+    private int length;
+    private final String string;
+
+    /**
+     * Creates an empty, reusable body buffer.
+     */
+    ResponseBody() {
+        this.bytes = new byte[INITIAL_CAPACITY];
+        this.string = null;
+    }
+
+    /**
+     * Creates a body from a response that has already been decoded.
+     *
+     * @param string the body
+     */
+    ResponseBody(String string) {
+        this.string = string;
+        this.length = string.length();
+    }
+
+    /**
+     * Returns the length of the body (in bytes or, for a decoded body, characters).
+     *
+     * @return an int
+     */
+    int length() {
+        return length;
+    }
+
+    /**
+     * Indicates whether the body starts with an ASCII string.
+     *
+     * @param prefix the string to look for
+     *
+     * @return a boolean
+     */
+    boolean startsWith(String prefix) {
+        return prefix.length() <= length && regionMatches(0, prefix);
+    }
+
+    /**
+     * Returns the index of the first occurrence of an ASCII string in the body.
+     *
+     * @param s the string to look for
+     * @param fromIndex the index to start searching from
+     *
+     * @return the index (or -1 if the body doesn't contain the string)
+     */
+    int indexOf(String s, int fromIndex) {
+        for (int i=Math.max(fromIndex, 0); i <= length - s.length(); i++) {
+            if (regionMatches(i, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Empties the buffer so that a new response can be read into it. A buffer that grew to hold an unusually large
+     * response is released rather than retained.
+     */
+    void clear() {
+        length = 0;
+        if (bytes != null && bytes.length > MAX_RETAINED_CAPACITY) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Reads bytes from a stream and appends them to the buffer.
+     *
+     * @param in the stream to read from
+     * @param max the maximum number of bytes to read
+     *
+     * @return the number of bytes read (or -1 if the stream has ended)
+     *
+     * @throws IOException on failure
+     */
+    int append(InputStream in, int max) throws IOException {
+        if (bytes == null) {
+            throw new IllegalStateException("A decoded response body can't be appended to");
+        }
+        if (length == bytes.length) {
+            byte[] b = new byte[bytes.length * 2];
+            System.arraycopy(bytes, 0, b, 0, length);
+            bytes = b;
+        }
+        int len = in.read(bytes, length, Math.min(bytes.length - length, max));
+        if (len > 0) {
+            length += len;
+        }
+        return len;
+    }
+
+    /**
+     * Decodes the body.
+     *
+     * @return a String
+     */
+    @Override
+    public String toString() {
+        return (string != null) ? string : new String(bytes, 0, length, UTF8);
+    }
+
+    /**
+     * Compares an ASCII string to the body at an index. Bytes of multi-byte UTF-8 sequences are never in the ASCII
+     * range so comparing raw bytes to the string's characters can't produce a false match.
+     *
+     * @param offset the index in the body
+     * @param s the string
+     *
+     * @return a boolean
+     */
+    private boolean regionMatches(int offset, String s) {
+        if (string != null) {
+            return string.startsWith(s, offset);
+        }
+        for (int i=0; i < s.length(); i++) {
+            if ((bytes[offset + i] & 0xff) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.util.Random;
+
+/**
+ * Determines whether and when a failed upload should be retried. Delays grow exponentially with each attempt and
+ * are jittered so that many stations failing at once don't retry in lock-step.
+ */
+class RetryPolicy {
+    private int maxRetries;
+    private long baseDelayMs;
+    private long maxDelayMs;
+    private Random random;
+
+    RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs) {
+        this(maxRetries, baseDelayMs, maxDelayMs, new Random());
+    }
+
+    RetryPolicy(int maxRetries, long baseDelayMs, long maxDelayMs, Random random) {
+        this.maxRetries = maxRetries;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.random = random;
+    }
+
+    /**
+     * Indicates whether a request should be retried.
+     *
+     * @param outcome the outcome of the last attempt
+     * @param retries the number of times the request has already been retried
+     *
+     * @return a boolean
+     */
+    boolean shouldRetry(UploadOutcome outcome, int retries) {
+        return (outcome.isTransient() && retries < maxRetries);
+    }
+
+    /**
+     * Returns the delay before the next retry. The delay is chosen at random between half and all of the
+     * exponential backoff for the attempt. Rate limited requests back off twice as aggressively.
+     *
+     * @param outcome the outcome of the last attempt
+     * @param retries the number of times the request has already been retried
+     *
+     * @return the delay in milliseconds
+     */
+    long getDelay(UploadOutcome outcome, int retries) {
+        int exp = Math.min(retries + (outcome == UploadOutcome.RATE_LIMITED ? 1 : 0), 30);
+        long backoff = Math.min(maxDelayMs, baseDelayMs << exp);
+        long half = backoff / 2;
+        synchronized (random) {
+            return half + (long)(random.nextDouble() * (backoff - half));
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free ring buffer of timestamped samples for a single variable. Samples can be added from
+ * any thread without allocating; once the buffer is full the oldest samples are overwritten.
+ *
+ * Each slot records the index of the sample it holds (plus one) once the sample has been fully written. Readers
+ * check it before and after reading a slot and skip any slot that is being written or has been overwritten, so
+ * aggregates never see a torn sample. Times and values are kept in atomic arrays (rather than plain ones) so that
+ * those reads are ordered with respect to the checks.
+ *
+ * A writer claims its slot with a compare-and-set of the slot's sequence before writing it, so two writers that wrap
+ * onto the same slot can't interleave their writes: a writer that finds the slot already claimed by a later sample
+ * drops its own (older) sample, and one that finds it being written by an earlier sample waits for that write to
+ * finish. Waiting only happens when more writers than the buffer's capacity are adding at once.
+ */
+class SampleBuffer {
+    private final int mask;
+    private final AtomicLongArray times;
+    private final AtomicLongArray values;
+    private final AtomicLongArray sequences;
+    private final AtomicLong writeIndex = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of samples to retain (must be a power of two)
+     */
+    SampleBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Sample buffer capacity must be a power of two");
+        }
+        this.mask = capacity - 1;
+        this.times = new AtomicLongArray(capacity);
+        this.values = new AtomicLongArray(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param time the sample time
+     * @param value the sample value
+     */
+    void add(long time, double value) {
+        long ix = writeIndex.getAndIncrement();
+        int slot = (int)(ix & mask);
+        // a slot being written holds the negated sequence of the sample being written to it
+        while (true) {
+            long seq = sequences.get(slot);
+            if (Math.abs(seq) > ix + 1) {
+                // a later sample has already claimed the slot
+                return;
+            } else if (seq < 0) {
+                Thread.yield();
+            } else if (sequences.compareAndSet(slot, seq, -(ix + 1))) {
+                break;
+            }
+        }
+        times.set(slot, time);
+        values.set(slot, Double.doubleToRawLongBits(value));
+        sequences.set(slot, ix + 1);
+    }
+
+    /**
+     * Returns the largest sample value since a particular time.
+     *
+     * @param since the time
+     *
+     * @return a double (or NaN if there are no samples)
+     */
+    double getMax(long since) {
+        double max = Double.NaN;
+        long end = writeIndex.get();
+        for (long ix = getStart(end); ix < end; ix++) {
+            int slot = (int)(ix & mask);
+            if (!isValid(slot, ix)) {
+                continue;
+            }
+            long t = times.get(slot);
+            double v = Double.longBitsToDouble(values.get(slot));
+            if (isValid(slot, ix) && t >= since && !(v <= max)) {
+                max = v;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns the mean sample value since a particular time.
+     *
+     * @param since the time
+     *
+     * @return a double (or NaN if there are no samples)
+     */
+    double getMean(long since) {
+        double sum = 0;
+        int count = 0;
+        long end = writeIndex.get();
+        for (long ix = getStart(end); ix < end; ix++) {
+            int slot = (int)(ix & mask);
+            if (!isValid(slot, ix)) {
+                continue;
+            }
+            long t = times.get(slot);
+            double v = Double.longBitsToDouble(values.get(slot));
+            if (isValid(slot, ix) && t >= since) {
+                sum += v;
+                count++;
+            }
+        }
+        return (count > 0) ? sum / count : Double.NaN;
+    }
+
+    /**
+     * Returns the vector mean of sample values (in degrees) since a particular time. Each sample is treated as a
+     * unit vector so that, for example, 350 and 10 average to 0 rather than 180.
+     *
+     * @param since the time
+     *
+     * @return a value in [0, 360) (or NaN if there are no samples or they cancel each other out)
+     */
+    double getVectorMeanDegrees(long since) {
+        double sumSin = 0;
+        double sumCos = 0;
+        int count = 0;
+        long end = writeIndex.get();
+        for (long ix = getStart(end); ix < end; ix++) {
+            int slot = (int)(ix & mask);
+            if (!isValid(slot, ix)) {
+                continue;
+            }
+            long t = times.get(slot);
+            double v = Double.longBitsToDouble(values.get(slot));
+            if (isValid(slot, ix) && t >= since) {
+                double rad = Math.toRadians(v);
+                sumSin += Math.sin(rad);
+                sumCos += Math.cos(rad);
+                count++;
+            }
+        }
+        if (count == 0 || Math.hypot(sumSin, sumCos) / count < 1e-6) {
+            return Double.NaN;
+        }
+        double deg = Math.toDegrees(Math.atan2(sumSin, sumCos));
+        return (deg < 0) ? deg + 360 : deg;
+    }
+
+    /**
+     * Returns the amount a cumulative counter (e.g. a rain total) has increased since a particular time. A
+     * decrease is treated as a counter reset, so the value after the reset counts in full. The increase between the
+     * last sample before the time and the first one after it is pro-rated by how much of that interval falls after
+     * the time (assuming a steady rate), since only that part of it belongs to the period.
+     *
+     * @param since the time
+     *
+     * @return a double (or NaN if there are no samples)
+     */
+    double getAccumulation(long since) {
+        double total = 0;
+        double prev = Double.NaN;
+        long prevTime = 0;
+        boolean found = false;
+        long end = writeIndex.get();
+        for (long ix = getStart(end); ix < end; ix++) {
+            int slot = (int)(ix & mask);
+            if (!isValid(slot, ix)) {
+                continue;
+            }
+            long t = times.get(slot);
+            double v = Double.longBitsToDouble(values.get(slot));
+            if (isValid(slot, ix)) {
+                if (t >= since) {
+                    if (!Double.isNaN(prev)) {
+                        double delta = (v >= prev) ? v - prev : v;
+                        if (prevTime < since && t > prevTime) {
+                            delta = delta * (t - since) / (t - prevTime);
+                        }
+                        total += delta;
+                    }
+                    found = true;
+                }
+                prev = v;
+                prevTime = t;
+            }
+        }
+        return found ? total : Double.NaN;
+    }
+
+    private long getStart(long end) {
+        return Math.max(0, end - mask - 1);
+    }
+
+    private boolean isValid(int slot, long ix) {
+        return (sequences.get(slot) == ix + 1);
+    }
+}
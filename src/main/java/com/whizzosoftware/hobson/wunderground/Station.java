@@ -0,0 +1,401 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableState;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A binding between a weather station device and a Weather Underground PWS ID/password (plus credentials for any
+ * other upload services). Each station tracks the last time each of its variables was uploaded and has a
+ * Destination for each service it uploads to.
+ *
+ * A station's request lifecycle is driven from the refresh thread, the HTTP client's event loop and the plugin's
+ * scheduler, so its state transitions (refreshing, queued, in flight) are all atomic compare-and-set operations
+ * rather than being guarded by a lock.
+ */
+class Station {
+    /**
+     * The last variable update value used when a variable has never been uploaded.
+     */
+    static final long NO_UPDATE = Long.MIN_VALUE;
+    /**
+     * The fastest reporting interval that sample buffers are sized for. Devices typically report every 2-3 seconds
+     * so this leaves headroom; a device that reports faster than this may lose the oldest samples in a window.
+     */
+    static final long MIN_SAMPLE_INTERVAL_MS = 1000;
+
+    private DeviceContext deviceContext;
+    private String pwsId;
+    private String pwsPassword;
+    private DeviceVariableContext[] variableContexts;
+    private int missingVariables;
+    private final long[] lastVariableUpdate = createUpdateTimes();
+    private final SampleBuffer[] samples = createSampleBuffers();
+    private final double[] lastSentValue = createSentValues();
+    private long lastUploadTime = NO_UPDATE;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private final Map<String,String[]> credentials = new ConcurrentHashMap<>();
+    private final AtomicReference<Destination[]> destinations = new AtomicReference<>();
+    private AtomicBoolean rapidFireDirty = new AtomicBoolean();
+    private volatile long lastRapidFireSend;
+    private final AtomicBoolean awaitingDevice = new AtomicBoolean();
+
+    Station() {}
+
+    Station(DeviceContext deviceContext, String pwsId, String pwsPassword) {
+        this.deviceContext = deviceContext;
+        this.pwsId = pwsId;
+        this.pwsPassword = pwsPassword;
+    }
+
+    DeviceContext getDeviceContext() {
+        return deviceContext;
+    }
+
+    void setDeviceContext(DeviceContext deviceContext) {
+        this.deviceContext = deviceContext;
+        this.variableContexts = null;
+        this.missingVariables = 0;
+    }
+
+    /**
+     * Returns the variable contexts of the station's device, indexed by WeatherVariable ordinal. These are created
+     * once per device rather than on every refresh.
+     *
+     * @return an array of DeviceVariableContext (or null if the station has no device)
+     */
+    DeviceVariableContext[] getVariableContexts() {
+        DeviceVariableContext[] ctxs = variableContexts;
+        if (ctxs == null && deviceContext != null) {
+            ctxs = new DeviceVariableContext[WeatherVariable.count()];
+            for (WeatherVariable wv : WeatherVariable.all()) {
+                ctxs[wv.ordinal()] = DeviceVariableContext.create(deviceContext, wv.getVariableName());
+            }
+            variableContexts = ctxs;
+        }
+        return ctxs;
+    }
+
+    /**
+     * Returns the variables the station's device was found not to publish, as a bit mask of WeatherVariable
+     * ordinals. This is only accessed by the thread refreshing the station.
+     *
+     * @return an int
+     */
+    int getMissingVariables() {
+        return missingVariables;
+    }
+
+    void setMissingVariables(int missingVariables) {
+        this.missingVariables = missingVariables;
+    }
+
+    String getPwsId() {
+        return pwsId;
+    }
+
+    void setPwsId(String pwsId) {
+        if (!Objects.equals(this.pwsId, pwsId)) {
+            this.pwsId = pwsId;
+            clearDestinations();
+        }
+    }
+
+    String getPwsPassword() {
+        return pwsPassword;
+    }
+
+    void setPwsPassword(String pwsPassword) {
+        if (!Objects.equals(this.pwsPassword, pwsPassword)) {
+            this.pwsPassword = pwsPassword;
+            clearDestinations();
+        }
+    }
+
+    /**
+     * Returns the station's credentials for an upload service other than Weather Underground.
+     *
+     * @param uploaderId the uploader ID
+     *
+     * @return a two element array of ID and password/key (or null if the station doesn't upload to the service)
+     */
+    String[] getCredentials(String uploaderId) {
+        return credentials.get(uploaderId);
+    }
+
+    /**
+     * Sets the station's credentials for an upload service other than Weather Underground. The credentials are
+     * stored exactly as given (as the Weather Underground ones are) since passwords may have significant whitespace.
+     *
+     * @param uploaderId the uploader ID
+     * @param id the station's ID at the service (or null to stop uploading to it)
+     * @param key the station's password or key at the service
+     */
+    void setCredentials(String uploaderId, String id, String key) {
+        String[] c = (id != null && id.trim().length() > 0 && key != null && key.trim().length() > 0) ? new String[] {id, key} : null;
+        if (!Arrays.equals(c, credentials.get(uploaderId))) {
+            if (c != null) {
+                credentials.put(uploaderId, c);
+            } else {
+                credentials.remove(uploaderId);
+            }
+            clearDestinations();
+        }
+    }
+
+    /**
+     * Returns the station's upload destinations.
+     *
+     * @return an array of Destination (or null if they need to be created)
+     */
+    Destination[] getDestinations() {
+        return destinations.get();
+    }
+
+    /**
+     * Sets the station's upload destinations if they haven't already been set by another thread.
+     *
+     * @param d the destinations
+     *
+     * @return the station's destinations
+     */
+    Destination[] initDestinations(Destination[] d) {
+        return destinations.compareAndSet(null, d) ? d : destinations.get();
+    }
+
+    /**
+     * Discards the station's destinations so they are re-created with its current credentials. Any rejected
+     * credentials are retried as a result.
+     */
+    void clearDestinations() {
+        destinations.set(null);
+    }
+
+    boolean isConfigured() {
+        return (deviceContext != null && pwsId != null && pwsId.trim().length() > 0 && pwsPassword != null && pwsPassword.trim().length() > 0);
+    }
+
+    /**
+     * Claims the station for building a new upload. Only one thread can refresh a station at a time; this also
+     * guards the station's per-variable upload state, which is only touched while the claim is held.
+     *
+     * @return true if the claim was acquired
+     */
+    boolean beginRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    void endRefresh() {
+        refreshing.set(false);
+    }
+
+    /**
+     * Indicates whether any of the station's destinations has a request in flight.
+     *
+     * @return a boolean
+     */
+    boolean hasPendingRequest() {
+        Destination[] ds = destinations.get();
+        if (ds != null) {
+            for (Destination d : ds) {
+                if (d.getInFlightCount() > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of the station's destinations that have a queued request.
+     *
+     * @return an int
+     */
+    int getQueuedRequestCount() {
+        int count = 0;
+        Destination[] ds = destinations.get();
+        if (ds != null) {
+            for (Destination d : ds) {
+                if (d.hasQueuedRequest()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the update time of the last value of a variable that was uploaded.
+     *
+     * @param variable the variable
+     *
+     * @return a time (or NO_UPDATE if the variable has never been uploaded)
+     */
+    long getLastVariableUpdate(WeatherVariable variable) {
+        return lastVariableUpdate[variable.ordinal()];
+    }
+
+    void setLastVariableUpdate(WeatherVariable variable, long time) {
+        lastVariableUpdate[variable.ordinal()] = time;
+    }
+
+    /**
+     * Marks the station as having unsent RapidFire changes.
+     *
+     * @return true if the station was previously clean (i.e. a flush needs to be scheduled)
+     */
+    boolean markRapidFireDirty() {
+        return rapidFireDirty.compareAndSet(false, true);
+    }
+
+    void clearRapidFireDirty() {
+        rapidFireDirty.set(false);
+    }
+
+    long getLastRapidFireSend() {
+        return lastRapidFireSend;
+    }
+
+    void setLastRapidFireSend(long lastRapidFireSend) {
+        this.lastRapidFireSend = lastRapidFireSend;
+    }
+
+    boolean isSameBinding(DeviceContext deviceContext, String pwsId) {
+        return (this.deviceContext != null && this.deviceContext.equals(deviceContext) && this.pwsId != null && this.pwsId.equals(pwsId));
+    }
+
+    /**
+     * Returns the last numeric value of a variable that was included in an upload.
+     *
+     * @param variable the variable
+     *
+     * @return a double (or NaN if no numeric value has been uploaded)
+     */
+    double getLastSentValue(WeatherVariable variable) {
+        return lastSentValue[variable.ordinal()];
+    }
+
+    void setLastSentValue(WeatherVariable variable, double value) {
+        lastSentValue[variable.ordinal()] = value;
+    }
+
+    /**
+     * Records that an upload has been created for the station.
+     *
+     * @param states the variable states that were uploaded indexed by WeatherVariable ordinal
+     * @param time the time of the upload
+     */
+    void onUpload(DeviceVariableState[] states, long time) {
+        for (int i=0; i < states.length; i++) {
+            if (states[i] != null) {
+                if (states[i].getValue() instanceof Number) {
+                    lastSentValue[i] = ((Number)states[i].getValue()).doubleValue();
+                }
+                if (states[i].getLastUpdate() != null) {
+                    lastVariableUpdate[i] = states[i].getLastUpdate();
+                }
+            }
+        }
+        lastUploadTime = time;
+    }
+
+    /**
+     * Returns the time of the station's last upload.
+     *
+     * @return a time (or NO_UPDATE if nothing has been uploaded)
+     */
+    long getLastUploadTime() {
+        return lastUploadTime;
+    }
+
+    void setLastUploadTime(long lastUploadTime) {
+        this.lastUploadTime = lastUploadTime;
+    }
+
+    /**
+     * Indicates whether the station's device couldn't be found when the station was last refreshed (e.g. because
+     * the plugin that publishes it is still starting up).
+     *
+     * @return a boolean
+     */
+    boolean isAwaitingDevice() {
+        return awaitingDevice.get();
+    }
+
+    /**
+     * Records whether the station's device could be found.
+     *
+     * @param awaiting true if the device couldn't be found
+     *
+     * @return true if this changed the station's state
+     */
+    boolean setAwaitingDevice(boolean awaiting) {
+        return awaitingDevice.compareAndSet(!awaiting, awaiting);
+    }
+
+    /**
+     * Returns the samples retained for a variable.
+     *
+     * @param variable the variable
+     *
+     * @return a SampleBuffer (or null if the variable isn't sampled)
+     */
+    SampleBuffer getSamples(WeatherVariable variable) {
+        return samples[variable.ordinal()];
+    }
+
+    private static SampleBuffer[] createSampleBuffers() {
+        SampleBuffer[] buffers = new SampleBuffer[WeatherVariable.count()];
+        for (WeatherVariable wv : WeatherVariable.all()) {
+            if (wv.isSampled()) {
+                buffers[wv.ordinal()] = new SampleBuffer(getSampleCapacity(wv.getSampleWindowMs()));
+            }
+        }
+        return buffers;
+    }
+
+    /**
+     * Returns the number of samples needed to cover an aggregation window at the fastest expected reporting rate.
+     *
+     * @param windowMs the window
+     *
+     * @return a power of two
+     */
+    static int getSampleCapacity(long windowMs) {
+        long samples = windowMs / MIN_SAMPLE_INTERVAL_MS + 1;
+        return Math.max(1, Integer.highestOneBit((int)samples - 1) << 1);
+    }
+
+    private static double[] createSentValues() {
+        double[] values = new double[WeatherVariable.count()];
+        Arrays.fill(values, Double.NaN);
+        return values;
+    }
+
+    private static long[] createUpdateTimes() {
+        long[] times = new long[WeatherVariable.count()];
+        Arrays.fill(times, NO_UPDATE);
+        return times;
+    }
+
+    @Override
+    public String toString() {
+        return pwsId + " (" + deviceContext + ")";
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Reads observations from a raw weather station log one row at a time so that arbitrarily large logs can be
+ * imported. Two formats are supported:
+ *
+ * - CSV with a header row
+ * - JSON lines (one flat JSON object per line)
+ *
+ * Columns (or keys) are matched to WeatherVariables by Hobson variable name or by update query parameter; the
+ * observation time is taken from a "time", "timestamp", "dateutc" or "date" column and can be epoch seconds, epoch
+ * milliseconds or a UTC date of the form "yyyy-MM-dd HH:mm:ss" (optionally with a "T" separator and "Z" suffix).
+ * Unrecognised columns are ignored and rows without a time or any recognised values are skipped.
+ *
+ * The reader tracks the byte offset of the end of each row so that an import can be resumed part way through a
+ * log.
+ */
+class StationLogReader implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(StationLogReader.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF8");
+    private static final String[] TIME_COLUMNS = {"time", "timestamp", "dateutc", "date"};
+    private static final long MAX_EPOCH_SECONDS = 100000000000L;
+
+    private final InputStream in;
+    private final long length;
+    private long offset;
+    private long rowCount;
+    private long skippedCount;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean json;
+    private boolean pendingFirstLine;
+    private WeatherVariable[] columns;
+    private int timeColumn = -1;
+    private final StringBuilder params = new StringBuilder(192);
+    private final SimpleDateFormat dateFormat;
+
+    /**
+     * Opens a log.
+     *
+     * @param f the log file
+     * @param offset the offset to start reading rows from (0 for the beginning of the file or a value previously
+     *               returned by getOffset())
+     *
+     * @throws IOException on failure
+     */
+    StationLogReader(File f, long offset) throws IOException {
+        this.length = f.length();
+        this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            this.in = new BufferedInputStream(fis, 65536);
+            readFormat();
+            if (offset > 0) {
+                pendingFirstLine = false;
+            }
+            if (offset > this.offset) {
+                long skip = offset - this.offset;
+                while (skip > 0) {
+                    long n = in.skip(skip);
+                    if (n <= 0) {
+                        throw new IOException("Offset " + offset + " is beyond the end of " + f);
+                    }
+                    skip -= n;
+                }
+                this.offset = offset;
+            }
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the offset of the end of the last row read. Reading can be resumed from this offset.
+     *
+     * @return a byte offset
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of rows read (including skipped rows).
+     *
+     * @return a long
+     */
+    long getRowCount() {
+        return rowCount;
+    }
+
+    long getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Reads the next observation from the log.
+     *
+     * @return a Row (or null if the end of the log has been reached)
+     *
+     * @throws IOException on failure
+     */
+    Row next() throws IOException {
+        while (readLine()) {
+            if (lineLength == 0) {
+                continue;
+            }
+            rowCount++;
+            Row row = json ? parseJson() : parseCsv();
+            if (row != null) {
+                return row;
+            }
+            skippedCount++;
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            logger.error("Error closing station log", e);
+        }
+    }
+
+    /**
+     * Determines the log format from its first non-blank line. For CSV logs this is the header, which is always read
+     * from the start of the file even when resuming.
+     *
+     * @throws IOException on failure
+     */
+    private void readFormat() throws IOException {
+        while (readLine()) {
+            if (lineLength > 0) {
+                if (line[0] == '{') {
+                    json = true;
+                    // the first line is an observation so rewinding isn't possible; it is re-parsed instead
+                    pendingFirstLine = true;
+                } else {
+                    List<String> names = splitCsv();
+                    columns = new WeatherVariable[names.size()];
+                    for (int i=0; i < names.size(); i++) {
+                        String name = names.get(i).trim();
+                        if (isTimeColumn(name)) {
+                            timeColumn = i;
+                        } else {
+                            columns[i] = forColumn(name);
+                        }
+                    }
+                    if (timeColumn == -1) {
+                        logger.warn("Station log has no time column; no rows will be imported");
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the next line into the line buffer (without its line terminator).
+     *
+     * @return false if the end of the file has been reached
+     *
+     * @throws IOException on failure
+     */
+    private boolean readLine() throws IOException {
+        if (pendingFirstLine) {
+            pendingFirstLine = false;
+            return true;
+        }
+        lineLength = 0;
+        int c;
+        boolean read = false;
+        while ((c = in.read()) != -1) {
+            offset++;
+            read = true;
+            if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                if (lineLength == line.length) {
+                    byte[] b = new byte[line.length * 2];
+                    System.arraycopy(line, 0, b, 0, lineLength);
+                    line = b;
+                }
+                line[lineLength++] = (byte)c;
+            }
+        }
+        return read;
+    }
+
+    private Row parseCsv() throws UnsupportedEncodingException {
+        if (timeColumn == -1) {
+            return null;
+        }
+        List<String> values = splitCsv();
+        if (values.size() <= timeColumn) {
+            return null;
+        }
+        long time = parseTime(values.get(timeColumn).trim());
+        params.setLength(0);
+        for (int i=0; i < values.size() && i < columns.length; i++) {
+            appendValue(columns[i], values.get(i).trim());
+        }
+        return createRow(time);
+    }
+
+    /**
+     * Parses a flat JSON object. Nested objects and arrays aren't supported and cause the row to be skipped.
+     *
+     * @return a Row (or null if the row can't be parsed)
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    private Row parseJson() throws UnsupportedEncodingException {
+        String s = new String(line, 0, lineLength, UTF8);
+        long time = Station.NO_UPDATE;
+        params.setLength(0);
+
+        int i = skipWhitespace(s, 0);
+        if (i >= s.length() || s.charAt(i) != '{') {
+            return null;
+        }
+        i = skipWhitespace(s, i + 1);
+        while (i < s.length() && s.charAt(i) != '}') {
+            if (s.charAt(i) != '"') {
+                return null;
+            }
+            int end = s.indexOf('"', i + 1);
+            if (end == -1) {
+                return null;
+            }
+            String key = s.substring(i + 1, end);
+            i = skipWhitespace(s, end + 1);
+            if (i >= s.length() || s.charAt(i) != ':') {
+                return null;
+            }
+            i = skipWhitespace(s, i + 1);
+            if (i >= s.length()) {
+                return null;
+            }
+
+            String value;
+            if (s.charAt(i) == '"') {
+                end = s.indexOf('"', i + 1);
+                if (end == -1) {
+                    return null;
+                }
+                value = s.substring(i + 1, end);
+                i = end + 1;
+            } else if (s.charAt(i) == '{' || s.charAt(i) == '[') {
+                return null;
+            } else {
+                end = i;
+                while (end < s.length() && s.charAt(end) != ',' && s.charAt(end) != '}') {
+                    end++;
+                }
+                value = s.substring(i, end).trim();
+                i = end;
+            }
+
+            if (isTimeColumn(key)) {
+                time = parseTime(value);
+            } else if (!"null".equals(value)) {
+                appendValue(forColumn(key), value);
+            }
+
+            i = skipWhitespace(s, i);
+            if (i < s.length() && s.charAt(i) == ',') {
+                i = skipWhitespace(s, i + 1);
+            }
+        }
+        return createRow(time);
+    }
+
+    private Row createRow(long time) {
+        if (time != Station.NO_UPDATE && params.length() > 0) {
+            return new Row(time, params.toString(), offset);
+        }
+        return null;
+    }
+
+    private void appendValue(WeatherVariable wv, String value) throws UnsupportedEncodingException {
+        if (wv != null && value.length() > 0) {
+            try {
+                UpdateUrlTemplate.appendParameter(params, wv.getQueryParameter(), Double.parseDouble(value), wv.getPrecision());
+            } catch (NumberFormatException e) {
+                logger.debug("Ignoring invalid {} value: {}", wv.getQueryParameter(), value);
+            }
+        }
+    }
+
+    /**
+     * Splits the current line on commas, honouring double-quoted values.
+     *
+     * @return a list of values
+     */
+    private List<String> splitCsv() {
+        String s = new String(line, 0, lineLength, UTF8);
+        List<String> values = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i=0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < s.length() && s.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                values.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        values.add(sb.toString());
+        return values;
+    }
+
+    private long parseTime(String s) {
+        if (s.length() > 0) {
+            try {
+                long t = Long.parseLong(s);
+                return (t < MAX_EPOCH_SECONDS) ? t * 1000 : t;
+            } catch (NumberFormatException ignored) {}
+            try {
+                String d = s.replace('T', ' ');
+                if (d.endsWith("Z")) {
+                    d = d.substring(0, d.length() - 1);
+                }
+                return dateFormat.parse(d).getTime();
+            } catch (ParseException ignored) {}
+        }
+        return Station.NO_UPDATE;
+    }
+
+    private static WeatherVariable forColumn(String name) {
+        WeatherVariable wv = WeatherVariable.forName(name);
+        return (wv != null) ? wv : WeatherVariable.forQueryParameter(name);
+    }
+
+    private static boolean isTimeColumn(String name) {
+        for (String s : TIME_COLUMNS) {
+            if (s.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int skipWhitespace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * An observation read from a log.
+     */
+    static class Row {
+        private final long observedAt;
+        private final String params;
+        private final long endOffset;
+
+        Row(long observedAt, String params, long endOffset) {
+            this.observedAt = observedAt;
+            this.params = params;
+            this.endOffset = endOffset;
+        }
+
+        long getObservedAt() {
+            return observedAt;
+        }
+
+        /**
+         * Returns the observation's variable query parameters.
+         *
+         * @return a String
+         */
+        String getParams() {
+            return params;
+        }
+
+        /**
+         * Returns the offset of the end of the row in the log.
+         *
+         * @return a byte offset
+         */
+        long getEndOffset() {
+            return endOffset;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * A pre-compiled update URL for a station. The base URL, ID and password are encoded once when the template is
+ * created and observations are then written into a caller-supplied (and reusable) buffer. Numeric values are
+ * written directly into the buffer with fixed precision rather than going through toString() and URLEncoder.
+ */
+class UpdateUrlTemplate {
+    private static final long[] POW10 = {1, 10, 100, 1000, 10000, 100000, 1000000};
+
+    private final String prefix;
+
+    UpdateUrlTemplate(String baseUrl, String pwsId, String pwsPassword) throws UnsupportedEncodingException {
+        this(baseUrl, "ID", pwsId, "PASSWORD", pwsPassword);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param baseUrl the update URL
+     * @param idParam the name of the station ID query parameter
+     * @param id the station ID
+     * @param keyParam the name of the station password/key query parameter
+     * @param key the station password/key
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    UpdateUrlTemplate(String baseUrl, String idParam, String id, String keyParam, String key) throws UnsupportedEncodingException {
+        this.prefix = baseUrl + "?" + idParam + "=" + URLEncoder.encode(id, "UTF8") + "&" + keyParam + "=" + URLEncoder.encode(key, "UTF8") + "&dateutc=";
+    }
+
+    /**
+     * Clears a buffer and writes the start of an update URL into it.
+     *
+     * @param sb the buffer
+     * @param dateUtc the (encoded) observation date or "now"
+     *
+     * @return the buffer
+     */
+    StringBuilder begin(StringBuilder sb, String dateUtc) {
+        sb.setLength(0);
+        return sb.append(prefix).append(dateUtc);
+    }
+
+    /**
+     * Appends a query parameter to a URL.
+     *
+     * @param sb the buffer to append to
+     * @param name the parameter name (must not require encoding)
+     * @param value the parameter value
+     * @param precision the maximum number of decimal places to write for floating point values
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    static void appendParameter(StringBuilder sb, String name, Object value, int precision) throws UnsupportedEncodingException {
+        sb.append('&').append(name).append('=');
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            sb.append(((Number)value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            appendDecimal(sb, ((Number)value).doubleValue(), precision);
+        } else {
+            sb.append(URLEncoder.encode(value.toString(), "UTF8"));
+        }
+    }
+
+    /**
+     * Appends a decimal value rounded to a fixed number of decimal places. Trailing zeros (and the decimal point
+     * if there is no fractional part) are omitted.
+     *
+     * @param sb the buffer to append to
+     * @param value the value
+     * @param precision the number of decimal places
+     */
+    static void appendDecimal(StringBuilder sb, double value, int precision) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= Long.MAX_VALUE / POW10[precision]) {
+            sb.append(value);
+            return;
+        }
+
+        long scale = POW10[precision];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            sb.append('-');
+        }
+        sb.append(scaled / scale);
+
+        long frac = scaled % scale;
+        if (frac != 0) {
+            int digits = precision;
+            while (frac % 10 == 0) {
+                frac /= 10;
+                digits--;
+            }
+            sb.append('.');
+            for (int i=digits-1; i >= 0; i--) {
+                sb.append((char)('0' + (frac / POW10[i]) % 10));
+            }
+        }
+    }
+}
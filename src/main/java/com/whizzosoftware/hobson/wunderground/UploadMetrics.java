@@ -0,0 +1,202 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Upload counters and a latency histogram. All updates are lock-free so they can be recorded from both the
+ * refresh thread and the HTTP client's event loop.
+ *
+ * The latency histogram uses power-of-two millisecond buckets: bucket 0 holds latencies under 1ms and bucket n
+ * holds latencies in [2^(n-1), 2^n) ms. Percentiles are therefore reported as the upper bound of the bucket they
+ * fall in.
+ */
+class UploadMetrics {
+    private static final int BUCKET_COUNT = 24;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong successCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong skippedPendingCount = new AtomicLong();
+    private final AtomicLong noNewDataCount = new AtomicLong();
+    private final AtomicLong staleVariableCount = new AtomicLong();
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong latencyCount = new AtomicLong();
+    private final AtomicLong latencySumMs = new AtomicLong();
+    private final AtomicLong latencyMaxMs = new AtomicLong();
+
+    void onSent() {
+        sentCount.incrementAndGet();
+    }
+
+    void onSuppressed() {
+        suppressedCount.incrementAndGet();
+    }
+
+    void onSuccess() {
+        successCount.incrementAndGet();
+    }
+
+    void onFailure() {
+        failureCount.incrementAndGet();
+    }
+
+    void onTimeout() {
+        timeoutCount.incrementAndGet();
+    }
+
+    void onRetry() {
+        retryCount.incrementAndGet();
+    }
+
+    void onSkippedPending() {
+        skippedPendingCount.incrementAndGet();
+    }
+
+    void onNoNewData() {
+        noNewDataCount.incrementAndGet();
+    }
+
+    void onStaleVariable() {
+        staleVariableCount.incrementAndGet();
+    }
+
+    /**
+     * Records the latency of a completed request.
+     *
+     * @param latencyMs the latency in milliseconds
+     */
+    void recordLatency(long latencyMs) {
+        if (latencyMs < 0) {
+            latencyMs = 0;
+        }
+        latencyBuckets.incrementAndGet(getBucket(latencyMs));
+        latencyCount.incrementAndGet();
+        latencySumMs.addAndGet(latencyMs);
+        long max;
+        do {
+            max = latencyMaxMs.get();
+        } while (latencyMs > max && !latencyMaxMs.compareAndSet(max, latencyMs));
+    }
+
+    long getSentCount() {
+        return sentCount.get();
+    }
+
+    long getSuppressedCount() {
+        return suppressedCount.get();
+    }
+
+    long getSuccessCount() {
+        return successCount.get();
+    }
+
+    long getFailureCount() {
+        return failureCount.get();
+    }
+
+    long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    long getRetryCount() {
+        return retryCount.get();
+    }
+
+    long getSkippedPendingCount() {
+        return skippedPendingCount.get();
+    }
+
+    long getNoNewDataCount() {
+        return noNewDataCount.get();
+    }
+
+    long getStaleVariableCount() {
+        return staleVariableCount.get();
+    }
+
+    long getLatencyCount() {
+        return latencyCount.get();
+    }
+
+    long getLatencyMaxMs() {
+        return latencyMaxMs.get();
+    }
+
+    long getLatencyMeanMs() {
+        long count = latencyCount.get();
+        return (count > 0) ? latencySumMs.get() / count : 0;
+    }
+
+    /**
+     * Returns an upper bound for a latency percentile.
+     *
+     * @param percentile the percentile (0-100)
+     *
+     * @return the upper bound of the bucket containing the percentile in milliseconds (or 0 if no latencies have
+     * been recorded)
+     */
+    long getLatencyPercentileMs(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i=0; i < BUCKET_COUNT; i++) {
+            counts[i] = latencyBuckets.get(i);
+            total += counts[i];
+        }
+        if (total > 0) {
+            long target = (long)Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i=0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= target && counts[i] > 0) {
+                    return Math.min(1L << i, getLatencyMaxMs());
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a snapshot of all metrics.
+     *
+     * @return a Map of metric name to value
+     */
+    Map<String,Long> getSnapshot() {
+        Map<String,Long> m = new LinkedHashMap<>();
+        m.put("uploads.sent", getSentCount());
+        m.put("uploads.suppressed", getSuppressedCount());
+        m.put("uploads.success", getSuccessCount());
+        m.put("uploads.failure", getFailureCount());
+        m.put("uploads.timeout", getTimeoutCount());
+        m.put("uploads.retry", getRetryCount());
+        m.put("refresh.skippedPending", getSkippedPendingCount());
+        m.put("refresh.noNewData", getNoNewDataCount());
+        m.put("variables.stale", getStaleVariableCount());
+        m.put("latency.count", getLatencyCount());
+        m.put("latency.meanMs", getLatencyMeanMs());
+        m.put("latency.p50Ms", getLatencyPercentileMs(50));
+        m.put("latency.p95Ms", getLatencyPercentileMs(95));
+        m.put("latency.p99Ms", getLatencyPercentileMs(99));
+        m.put("latency.maxMs", getLatencyMaxMs());
+        return m;
+    }
+
+    private int getBucket(long latencyMs) {
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyMs);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+}
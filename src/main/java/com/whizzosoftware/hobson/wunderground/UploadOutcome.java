@@ -0,0 +1,85 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+/**
+ * The classified result of an upload request.
+ */
+enum UploadOutcome {
+    /**
+     * The observation was accepted.
+     */
+    SUCCESS(false),
+    /**
+     * The request could not be sent or no response was received.
+     */
+    TRANSPORT_ERROR(true),
+    /**
+     * The server returned a 5xx status.
+     */
+    SERVER_ERROR(true),
+    /**
+     * The server indicated that too many requests are being sent.
+     */
+    RATE_LIMITED(true),
+    /**
+     * The PWS ID or password was rejected.
+     */
+    AUTH_ERROR(false),
+    /**
+     * The observation was rejected for some other reason and will not succeed if re-sent.
+     */
+    REJECTED(false);
+
+    private boolean isTransient;
+
+    UploadOutcome(boolean isTransient) {
+        this.isTransient = isTransient;
+    }
+
+    /**
+     * Indicates whether the failure is likely to be temporary (i.e. whether the request should be retried).
+     *
+     * @return a boolean
+     */
+    boolean isTransient() {
+        return isTransient;
+    }
+
+    /**
+     * Classifies an HTTP response from the update service. Only the start of the body is inspected and it is not
+     * decoded.
+     *
+     * @param statusCode the HTTP status code
+     * @param body the response body (may be null)
+     *
+     * @return an UploadOutcome
+     */
+    static UploadOutcome classify(int statusCode, ResponseBody body) {
+        if (statusCode == 200) {
+            if (body != null) {
+                if (body.startsWith("success")) {
+                    return SUCCESS;
+                } else if (body.startsWith("INVALIDPASSWORDID")) {
+                    return AUTH_ERROR;
+                }
+            }
+            return REJECTED;
+        } else if (statusCode == 401 || statusCode == 403) {
+            return AUTH_ERROR;
+        } else if (statusCode == 429) {
+            return RATE_LIMITED;
+        } else if (statusCode >= 500) {
+            return SERVER_ERROR;
+        } else {
+            return REJECTED;
+        }
+    }
+}
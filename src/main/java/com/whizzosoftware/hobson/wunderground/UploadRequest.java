@@ -0,0 +1,186 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.net.URI;
+
+/**
+ * An upload request for a station destination. This is passed as the HTTP request context so that responses can be
+ * matched back to the destination and observation that produced them.
+ */
+class UploadRequest {
+    private long id;
+    private Destination destination;
+    private URI uri;
+    private String params;
+    private int paramsStart;
+    private int paramsEnd;
+    private long observedAt;
+    private long outboxSequence = -1;
+    private BackfillImport backfillImport;
+    private long importSequence;
+    private long sentAt;
+    private long deadline;
+    private long notBefore;
+    private int retryCount;
+
+    UploadRequest(Destination destination, URI uri, String params, long observedAt) {
+        this.destination = destination;
+        this.uri = uri;
+        this.params = params;
+        this.observedAt = observedAt;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param destination the destination
+     * @param uri the update URI
+     * @param paramsStart the offset of the observation's variable parameters within the URI string
+     * @param paramsEnd the end offset of the observation's variable parameters within the URI string
+     * @param observedAt the observation time
+     */
+    UploadRequest(Destination destination, URI uri, int paramsStart, int paramsEnd, long observedAt) {
+        this.destination = destination;
+        this.uri = uri;
+        this.paramsStart = paramsStart;
+        this.paramsEnd = paramsEnd;
+        this.observedAt = observedAt;
+    }
+
+    UploadRequest(Destination destination, URI uri, String params, long observedAt, long outboxSequence) {
+        this(destination, uri, params, observedAt);
+        this.outboxSequence = outboxSequence;
+    }
+
+    /**
+     * Returns the request's correlation ID. This is assigned when the request is sent.
+     *
+     * @return a long
+     */
+    long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    Destination getDestination() {
+        return destination;
+    }
+
+    Station getStation() {
+        return destination.getStation();
+    }
+
+    URI getURI() {
+        return uri;
+    }
+
+    /**
+     * Returns the variable query parameters of the observation (i.e. everything but the credentials, date and any service-specific parameters).
+     *
+     * @return a String
+     */
+    String getParams() {
+        if (params == null) {
+            params = uri.toString().substring(paramsStart, paramsEnd);
+        }
+        return params;
+    }
+
+    long getObservedAt() {
+        return observedAt;
+    }
+
+    /**
+     * Returns the time the request was sent.
+     *
+     * @return a System.nanoTime() value (or 0 if the request hasn't been sent)
+     */
+    long getSentAt() {
+        return sentAt;
+    }
+
+    void setSentAt(long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    /**
+     * Returns the time after which the request should be abandoned if no response has been received.
+     *
+     * @return a System.currentTimeMillis() value
+     */
+    long getDeadline() {
+        return deadline;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the earliest time the request may be sent (used to delay retries).
+     *
+     * @return a System.currentTimeMillis() value
+     */
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    void incrementRetryCount() {
+        retryCount++;
+    }
+
+    boolean isReplay() {
+        return (outboxSequence > -1);
+    }
+
+    long getOutboxSequence() {
+        return outboxSequence;
+    }
+
+    /**
+     * Indicates whether this is a row from a station log import. Like replays, imports don't occupy one of the
+     * destination's in-flight slots.
+     *
+     * @return a boolean
+     */
+    boolean isImport() {
+        return (backfillImport != null);
+    }
+
+    BackfillImport getBackfillImport() {
+        return backfillImport;
+    }
+
+    long getImportSequence() {
+        return importSequence;
+    }
+
+    void setImport(BackfillImport backfillImport, long importSequence) {
+        this.backfillImport = backfillImport;
+        this.importSequence = importSequence;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + destination + (isReplay() ? " [replay " + outboxSequence + "]" : "") + (isImport() ? " [import " + importSequence + "]" : "");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The runtime state the plugin keeps for an uploader: its concurrent upload slots and circuit breaker. Each
+ * service has its own, so a slow or failing service can't hold up uploads to the others.
+ */
+class UploadService {
+    private final int index;
+    private volatile Uploader uploader;
+    private volatile CircuitBreaker circuitBreaker;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param index the service's position in the plugin's service list
+     * @param uploader the uploader
+     * @param circuitBreaker the circuit breaker
+     */
+    UploadService(int index, Uploader uploader, CircuitBreaker circuitBreaker) {
+        this.index = index;
+        this.uploader = uploader;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    Uploader getUploader() {
+        return uploader;
+    }
+
+    void setUploader(Uploader uploader) {
+        this.uploader = uploader;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * Reserves one of the service's concurrent upload slots.
+     *
+     * @param max the maximum number of uploads that can be in flight to the service
+     *
+     * @return true if a slot was reserved
+     */
+    boolean tryAcquireInFlight(int max) {
+        int count;
+        do {
+            count = inFlightCount.get();
+            if (count >= max) {
+                return false;
+            }
+        } while (!inFlightCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Releases a slot reserved by tryAcquireInFlight(). The count never drops below zero, so a duplicate release
+     * can't let more uploads than the limit be in flight.
+     */
+    void releaseInFlight() {
+        int count;
+        do {
+            count = inFlightCount.get();
+            if (count <= 0) {
+                return;
+            }
+        } while (!inFlightCount.compareAndSet(count, count - 1));
+    }
+
+    @Override
+    public String toString() {
+        return uploader.getName();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Properties;
+
+/**
+ * Persists each station's per-variable upload state (the update time and value of the last upload of each variable
+ * and the time of the station's last upload) so that values that were already uploaded before a restart aren't
+ * sent again. The state is kept in a small properties file keyed by PWS ID and query parameter, e.g.:
+ *
+ * KXXX.lastUpload=1431234567890
+ * KXXX.tempf.time=1431234560000
+ * KXXX.tempf.value=72.5
+ */
+class UploadStateStore {
+    private static final Logger logger = LoggerFactory.getLogger(UploadStateStore.class);
+
+    private final File file;
+
+    UploadStateStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Restores the upload state of any of the stations that have state in the file. This must be called before the
+     * stations are refreshed.
+     *
+     * @param stations the stations
+     *
+     * @return the number of stations whose state was restored
+     */
+    int restore(Collection<Station> stations) {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        Properties p = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            p.load(is);
+        } catch (IOException e) {
+            logger.error("Unable to read upload state file; previously uploaded values may be sent again", e);
+            return 0;
+        }
+
+        int count = 0;
+        for (Station station : stations) {
+            String prefix = station.getPwsId() + ".";
+            long lastUpload = parseLong(p.getProperty(prefix + "lastUpload"), Station.NO_UPDATE);
+            if (station.getPwsId() != null && lastUpload != Station.NO_UPDATE) {
+                for (WeatherVariable wv : WeatherVariable.all()) {
+                    String key = prefix + wv.getQueryParameter();
+                    long time = parseLong(p.getProperty(key + ".time"), Station.NO_UPDATE);
+                    if (time != Station.NO_UPDATE) {
+                        station.setLastVariableUpdate(wv, time);
+                    }
+                    String value = p.getProperty(key + ".value");
+                    if (value != null) {
+                        try {
+                            station.setLastSentValue(wv, Double.parseDouble(value));
+                        } catch (NumberFormatException e) {
+                            logger.warn("Ignoring invalid upload state for {}: {}", key, value);
+                        }
+                    }
+                }
+                station.setLastUploadTime(lastUpload);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the upload state of the stations to the file, replacing its previous contents. Stations that are being
+     * refreshed can't be read consistently so nothing is written if any of them are.
+     *
+     * @param stations the stations
+     *
+     * @return false if the state could not be written (and should be saved again later)
+     */
+    boolean save(Collection<Station> stations) {
+        Properties p = new Properties();
+        for (Station station : stations) {
+            if (station.getPwsId() != null) {
+                if (!station.beginRefresh()) {
+                    return false;
+                }
+                try {
+                    long lastUpload = station.getLastUploadTime();
+                    if (lastUpload != Station.NO_UPDATE) {
+                        String prefix = station.getPwsId() + ".";
+                        p.setProperty(prefix + "lastUpload", Long.toString(lastUpload));
+                        for (WeatherVariable wv : WeatherVariable.all()) {
+                            String key = prefix + wv.getQueryParameter();
+                            long time = station.getLastVariableUpdate(wv);
+                            if (time != Station.NO_UPDATE) {
+                                p.setProperty(key + ".time", Long.toString(time));
+                            }
+                            double value = station.getLastSentValue(wv);
+                            if (!Double.isNaN(value)) {
+                                p.setProperty(key + ".value", Double.toString(value));
+                            }
+                        }
+                    }
+                } finally {
+                    station.endRefresh();
+                }
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            p.store(os, "Weather Underground upload state");
+        } catch (IOException e) {
+            logger.error("Unable to write upload state file", e);
+            return false;
+        }
+        if (!tmp.renameTo(file)) {
+            logger.error("Unable to write upload state file: {}", file);
+            return false;
+        }
+        return true;
+    }
+
+    private static long parseLong(String s, long def) {
+        if (s != null) {
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException ignored) {}
+        }
+        return def;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * A service that station observations can be uploaded to. An uploader defines how an observation is encoded into
+ * an update URL for the service and how the service's responses are classified; the plugin takes care of reading
+ * the station, queueing, rate limiting and retries.
+ *
+ * Observations are passed to uploaders as the Weather Underground query parameters (tempf, baromin, etc.) that the
+ * supported services all share.
+ */
+interface Uploader {
+    /**
+     * Returns a short identifier for the service (used for configuration and metrics).
+     *
+     * @return a String
+     */
+    String getId();
+
+    /**
+     * Returns a human-readable name for the service.
+     *
+     * @return a String
+     */
+    String getName();
+
+    /**
+     * Creates an update URL template for a set of station credentials.
+     *
+     * @param id the station ID
+     * @param key the station password or key
+     * @param realtime whether the template is for real-time (RapidFire) updates
+     *
+     * @return an UpdateUrlTemplate
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    UpdateUrlTemplate createUrlTemplate(String id, String key, boolean realtime) throws UnsupportedEncodingException;
+
+    /**
+     * Indicates whether the service accepts real-time (RapidFire) updates.
+     *
+     * @return a boolean
+     */
+    boolean supportsRealtime();
+
+    /**
+     * Indicates whether the service accepts "now" in place of an observation date.
+     *
+     * @return a boolean
+     */
+    boolean supportsDateNow();
+
+    /**
+     * Appends any service-specific parameters that follow the observation.
+     *
+     * @param url the URL to append to
+     * @param realtime whether this is a real-time update
+     * @param realtimeIntervalMs the interval between real-time updates
+     */
+    void appendSuffix(StringBuilder url, boolean realtime, long realtimeIntervalMs);
+
+    /**
+     * Returns the minimum time between uploads for a station.
+     *
+     * @return a time in milliseconds
+     */
+    long getMinInterval();
+
+    /**
+     * Classifies an HTTP response from the service.
+     *
+     * @param statusCode the HTTP status code
+     * @param body the response body (may be null); it is only valid for the duration of the call
+     *
+     * @return an UploadOutcome
+     */
+    UploadOutcome classify(int statusCode, ResponseBody body);
+}
@@ -0,0 +1,49 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+/**
+ * The names of weather station variables that this plugin uploads but that the Hobson platform doesn't define in
+ * VariableConstants. This is the contract a weather station plugin follows to have these readings uploaded: publish
+ * them on the station device under these names, in the stated units, alongside the standard VariableConstants
+ * variables (outdoor temperature, wind speed, etc.).
+ *
+ * All of them are optional. When a device doesn't publish WIND_GUST_MPH or RAIN_HOUR_IN, they are derived from the
+ * wind speed samples and the RAIN_DAY_IN samples respectively.
+ */
+public final class WeatherStationVariables {
+    /**
+     * The highest wind speed over the last 10 minutes (miles per hour).
+     */
+    public static final String WIND_GUST_MPH = "windGustMph";
+
+    /**
+     * The rain that has fallen over the last hour (inches).
+     */
+    public static final String RAIN_HOUR_IN = "rainHourIn";
+
+    /**
+     * The rain that has fallen since local midnight (inches). It should only ever increase, except when it resets to
+     * zero at midnight.
+     */
+    public static final String RAIN_DAY_IN = "rainDayIn";
+
+    /**
+     * The solar radiation (watts per square meter).
+     */
+    public static final String SOLAR_RADIATION_WM2 = "solarRadiationWm2";
+
+    /**
+     * The UV index.
+     */
+    public static final String UV_INDEX = "uvIndex";
+
+    private WeatherStationVariables() {}
+}
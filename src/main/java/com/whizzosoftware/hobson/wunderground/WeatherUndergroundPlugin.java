@@ -12,6 +12,9 @@ package com.whizzosoftware.hobson.wunderground;
 import com.whizzosoftware.hobson.api.HobsonNotFoundException;
 import com.whizzosoftware.hobson.api.device.DeviceContext;
 import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.event.EventTopics;
+import com.whizzosoftware.hobson.api.event.HobsonEvent;
+import com.whizzosoftware.hobson.api.event.device.DeviceVariablesUpdateEvent;
 import com.whizzosoftware.hobson.api.plugin.PluginStatus;
 import com.whizzosoftware.hobson.api.plugin.http.AbstractHttpClientPlugin;
 import com.whizzosoftware.hobson.api.plugin.http.HttpRequest;
@@ -21,42 +24,154 @@ import com.whizzosoftware.hobson.api.property.PropertyContainer;
 import com.whizzosoftware.hobson.api.property.TypedProperty;
 import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
 import com.whizzosoftware.hobson.api.variable.DeviceVariableState;
-import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableUpdate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A plugin that will send the weather-related variables of a particular device to Weather Underground as PWS data.
+ * A plugin that will send the weather-related variables of one or more devices to Weather Underground as PWS data.
+ * Each refresh reads a station's variables once and fans the observation out to every upload service the station
+ * has credentials for (Weather Underground and, optionally, PWSWeather and the Met Office WOW).
  *
  * @author Dan Noguerol
  */
-public class WeatherUndergroundPlugin extends AbstractHttpClientPlugin implements HttpChannel {
+public class WeatherUndergroundPlugin extends AbstractHttpClientPlugin implements HttpChannel, RapidFireScheduler.Listener, PooledHttpChannel.Listener, BackfillImport.Listener {
     private static final Logger logger = LoggerFactory.getLogger(WeatherUndergroundPlugin.class);
 
     private static final long VAR_EXPIRE_TIME_MS = 600000;
+    private static final long DEFAULT_REFRESH_INTERVAL_MS = 300000;
+    private static final long DEFAULT_MIN_REFRESH_INTERVAL_MS = 300000;
+    private static final long DEFAULT_MAX_REFRESH_INTERVAL_MS = 900000;
+    private static final long GUST_WINDOW_MS = WeatherVariable.WIND_SPEED.getSampleWindowMs();
+    private static final long WIND_AVG_WINDOW_MS = WeatherVariable.WIND_DIRECTION.getSampleWindowMs();
+    private static final long RAIN_WINDOW_MS = WeatherVariable.RAIN_DAY.getSampleWindowMs();
+    private static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 4;
+    private static final int DEFAULT_REQUEST_WINDOW = 1;
+    private static final long DEFAULT_REQUEST_TIMEOUT_MS = 60000;
+    private static final long REQUEST_SWEEP_INTERVAL_MS = 5000;
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BASE_DELAY_MS = 2000;
+    private static final long RETRY_MAX_DELAY_MS = 60000;
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_MS = 60000;
+    private static final long CIRCUIT_MAX_OPEN_MS = 900000;
+    private static final long DEFAULT_MAX_SILENCE_MS = 900000;
+    private static final double DEADBAND_EPSILON = 1e-9;
+    private static final long DEFAULT_RAPID_FIRE_INTERVAL_MS = 5000;
+    private static final long RAPID_FIRE_COALESCE_MS = 1000;
+    private static final int DEFAULT_OUTBOX_SIZE = 2016;
+    private static final int DEFAULT_BACKFILL_RATE = 30;
+    private static final String OUTBOX_FILENAME = "outbox.dat";
+    private static final String METRICS_FILENAME = "metrics.properties";
+    private static final long METRICS_PUBLISH_INTERVAL_MS = 60000;
+    private static final String STATE_FILENAME = "state.properties";
+    private static final long DEVICE_PROBE_INTERVAL_MS = 5000;
+    private static final String IMPORT_CHECKPOINT_FILENAME = "import.properties";
+    private static final int DEFAULT_IMPORT_RATE = 60;
+    private static final long IMPORT_PUMP_INTERVAL_MS = 1000;
+    private static final int POOL_MAX_IDLE_PER_HOST = 4;
+    private static final long POOL_IDLE_TIMEOUT_MS = 60000;
+    private static final long DNS_TTL_MS = 300000;
+    private static final int CONNECTION_TIMEOUT_MS = 30000;
 
-    private DeviceContext deviceContext;
-    private String pwsId;
-    private String pwsPassword;
-    private HttpChannel httpChannel;
-    private Map<String,Long> lastVariableUpdate = new HashMap<>();
-    private boolean pendingRequest;
+    private final HttpChannel defaultHttpChannel;
+    private volatile HttpChannel httpChannel;
+    private PooledHttpChannel pooledHttpChannel;
+    private final UploadService wunderground = new UploadService(0, new WundergroundUploader(), createCircuitBreaker());
+    private final UploadService[] services = new UploadService[] {
+        wunderground,
+        new UploadService(1, new PwsWeatherUploader(), createCircuitBreaker()),
+        new UploadService(2, new WowUploader(), createCircuitBreaker())
+    };
+    private final Station primaryStation = new Station();
+    // replaced rather than modified so that refreshes can iterate it without locking
+    private volatile List<Station> additionalStations = Collections.emptyList();
+    private int maxConcurrentUploads = DEFAULT_MAX_CONCURRENT_UPLOADS;
+    private int requestWindow = DEFAULT_REQUEST_WINDOW;
+    private long requestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+    private double[] deadbands = createDefaultDeadbands();
+    private long maxSilenceMs = DEFAULT_MAX_SILENCE_MS;
+    private final Map<Long,UploadRequest> inFlightRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private ScheduledFuture<?> requestSweeper;
+    private RetryPolicy retryPolicy = new RetryPolicy(MAX_RETRIES, RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS);
+    private volatile RapidFireScheduler rapidFireScheduler;
+    private final AdaptiveRefreshScheduler refreshScheduler = new AdaptiveRefreshScheduler(DEFAULT_MIN_REFRESH_INTERVAL_MS, DEFAULT_MAX_REFRESH_INTERVAL_MS, DEFAULT_REFRESH_INTERVAL_MS);
+    private ScheduledFuture<?> refreshTask;
+    private final Runnable refreshCheck = new Runnable() {
+        @Override
+        public void run() {
+            refreshWhenDue();
+        }
+    };
+    private ThreadLocal<StringBuilder> urlBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    private ThreadLocal<StringBuilder> paramBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(192);
+        }
+    };
+    private ThreadLocal<DeviceVariableState[]> stateBuffer = new ThreadLocal<DeviceVariableState[]>() {
+        @Override
+        protected DeviceVariableState[] initialValue() {
+            return new DeviceVariableState[WeatherVariable.count()];
+        }
+    };
+    private ScheduledExecutorService executor;
+    private volatile ObservationOutbox outbox;
+    private ScheduledFuture<?> outboxDrainer;
+    private AtomicBoolean replayInFlight = new AtomicBoolean();
+    private volatile boolean linkUp = true;
+    private UploadMetrics metrics = new UploadMetrics();
+    private File metricsFile;
+    private ScheduledFuture<?> metricsPublisher;
+    private volatile UploadStateStore stateStore;
+    private final AtomicBoolean uploadStateDirty = new AtomicBoolean();
+    private ScheduledFuture<?> deviceProbe;
+    private volatile BackfillImport backfillImport;
+    private ScheduledFuture<?> importPump;
 
     public WeatherUndergroundPlugin(String pluginId, String version, String description) {
         super(pluginId, version, description);
+        this.defaultHttpChannel = this;
         this.httpChannel = this;
     }
 
     public WeatherUndergroundPlugin(String pluginId, String version, String description, HttpChannel httpChannel) {
         super(pluginId, version, description);
+        this.defaultHttpChannel = httpChannel;
         this.httpChannel = httpChannel;
     }
 
@@ -65,7 +180,27 @@ public class WeatherUndergroundPlugin extends AbstractHttpClientPlugin implement
         return new TypedProperty[] {
             new TypedProperty.Builder("device", "Device", "The device reporting the weather data", TypedProperty.Type.DEVICE).constraint(PropertyConstraintType.required, true).constraint(PropertyConstraintType.deviceType, DeviceType.WEATHER_STATION.toString()).build(),
             new TypedProperty.Builder("pwsId", "PWS ID", "The Personal Weather Station ID", TypedProperty.Type.STRING).constraint(PropertyConstraintType.required, true).build(),
-            new TypedProperty.Builder("pwsPassword", "Password", "The Personal Weather Station password", TypedProperty.Type.SECURE_STRING).constraint(PropertyConstraintType.required, true).build()
+            new TypedProperty.Builder("pwsPassword", "Password", "The Personal Weather Station password", TypedProperty.Type.SECURE_STRING).constraint(PropertyConstraintType.required, true).build(),
+            new TypedProperty.Builder("additionalDevices", "Additional Devices", "Additional devices reporting weather data", TypedProperty.Type.DEVICES).constraint(PropertyConstraintType.deviceType, DeviceType.WEATHER_STATION.toString()).build(),
+            new TypedProperty.Builder("additionalStations", "Additional Station Credentials", "The PWS ID and password for each additional device as a comma-separated list of deviceId=pwsId:password entries (write a comma or backslash in a password as \\, or \\\\)", TypedProperty.Type.SECURE_STRING).build(),
+            new TypedProperty.Builder("pwsWeatherId", "PWSWeather Station ID", "The PWSWeather station ID (to also send the device's data to PWSWeather)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder("pwsWeatherPassword", "PWSWeather Password", "The PWSWeather password", TypedProperty.Type.SECURE_STRING).build(),
+            new TypedProperty.Builder("wowSiteId", "WOW Site ID", "The Met Office WOW site ID (to also send the device's data to WOW)", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder("wowAuthKey", "WOW Authentication Key", "The Met Office WOW site authentication key", TypedProperty.Type.SECURE_STRING).build(),
+            new TypedProperty.Builder("maxConcurrentUploads", "Maximum Concurrent Uploads", "The maximum number of station uploads that can be in progress at once to each upload service", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("requestWindow", "Request Window", "The maximum number of uploads that can be in progress for a single station", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("requestTimeout", "Request Timeout", "The number of seconds after which an upload that has received no response is abandoned", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("deadbands", "Deadbands", "A comma-separated list of parameter=threshold pairs (e.g. tempf=0.2,baromin=0.005) overriding how much a value must change before it is worth uploading", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder("minRefreshInterval", "Minimum Refresh Interval", "The minimum number of seconds between uploads when variables are changing quickly", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("maxRefreshInterval", "Maximum Refresh Interval", "The maximum number of seconds between uploads when variables are idle or the upload services are struggling", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("maxSilence", "Maximum Silence", "The maximum number of seconds between uploads for a station when no values have changed significantly", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("persistentConnections", "Persistent Connections", "Keep connections to the upload services open between uploads rather than connecting for each one", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder("rapidFire", "RapidFire Updates", "Send data to the real-time update service as soon as it changes rather than every 5 minutes", TypedProperty.Type.BOOLEAN).build(),
+            new TypedProperty.Builder("rapidFireInterval", "RapidFire Interval", "The minimum number of seconds between RapidFire updates for a station", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("outboxSize", "Outbox Size", "The maximum number of unsent observations to retain for later delivery (0 to disable)", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("backfillRate", "Backfill Rate", "The maximum number of retained observations to send per minute once connectivity is restored", TypedProperty.Type.NUMBER).build(),
+            new TypedProperty.Builder("importFile", "Import File", "The path of a CSV or JSON lines station log whose observations should be uploaded with their original timestamps", TypedProperty.Type.STRING).build(),
+            new TypedProperty.Builder("importRate", "Import Rate", "The maximum number of station log observations to upload per minute", TypedProperty.Type.NUMBER).build()
         };
     }
 
@@ -74,18 +209,49 @@ public class WeatherUndergroundPlugin extends AbstractHttpClientPlugin implement
         return "Weather Underground";
     }
 
+    /**
+     * Returns how often the plugin is woken up by the framework. Station refreshes are scheduled for the moment the
+     * AdaptiveRefreshScheduler says they're due (see refreshWhenDue()), so these wake-ups only expire abandoned
+     * requests and refresh the stations if, for some reason, no refresh is scheduled.
+     */
     @Override
     public long getRefreshInterval() {
-        return 300;
+        return Math.max(1, refreshScheduler.getMinIntervalMs() / 1000);
     }
 
     @Override
     public void onStartup(PropertyContainer config) {
+        metricsFile = getDataFile(METRICS_FILENAME);
         processConfig(config);
+        startMetricsPublisher();
+        setUploadStateStore(new UploadStateStore(getDataFile(STATE_FILENAME)));
+
+        // refresh straight away rather than waiting for the first refresh interval to elapse
+        startRefreshTask();
     }
 
     @Override
-    public void onShutdown() {
+    synchronized public void onShutdown() {
+        stopRefreshTask();
+        stopDeviceProbe();
+        saveUploadState();
+        setBackfillImport(null);
+        setRapidFire(false, 0, 0);
+        setOutbox(null, 0);
+        setPersistentConnections(false);
+        if (requestSweeper != null) {
+            requestSweeper.cancel(false);
+            requestSweeper = null;
+        }
+        if (metricsPublisher != null) {
+            metricsPublisher.cancel(false);
+            metricsPublisher = null;
+        }
+        publishMetrics();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
     }
 
     @Override
@@ -95,157 +261,1452 @@ public class WeatherUndergroundPlugin extends AbstractHttpClientPlugin implement
 
     @Override
     public void onRefresh() {
-        onRefresh(System.currentTimeMillis());
+        long now = System.currentTimeMillis();
+        expireRequests(now);
+        if (!isRefreshPending() && refreshScheduler.isDue(now)) {
+            onRefresh(now);
+        }
+    }
+
+    /**
+     * Refreshes the stations if a refresh is due and schedules the next check for the moment the following refresh
+     * is due. If the check runs slightly early (the executor's clock and the wall clock can disagree by a few
+     * milliseconds) it is rescheduled for the remainder rather than skipped until another full interval has elapsed.
+     */
+    void refreshWhenDue() {
+        try {
+            long now = System.currentTimeMillis();
+            if (refreshScheduler.isDue(now)) {
+                onRefresh(now);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Error refreshing stations", e);
+        }
+        long delay = refreshScheduler.getDelayMs(System.currentTimeMillis());
+        rescheduleRefreshTask(delay > 0 ? delay : refreshScheduler.getDecision().getIntervalMs());
     }
 
     void onRefresh(long now) {
-        if (!pendingRequest) {
-            if (deviceContext != null && pwsId != null && pwsPassword != null) {
-                try {
-                    StringBuilder url = new StringBuilder("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=")
-                            .append(pwsId).append("&PASSWORD=").append(URLEncoder.encode(pwsPassword, "UTF8")).append("&dateutc=now");
+        if (rapidFireScheduler == null) {
+            refreshStation(primaryStation, now, false);
+            for (Station station : additionalStations) {
+                refreshStation(station, now, false);
+            }
+            sendQueuedRequests();
+            AdaptiveRefreshScheduler.Decision d = refreshScheduler.onRefreshComplete(now);
+            if (logger.isDebugEnabled()) {
+                logger.debug("Next refresh in {}ms ({})", d.getIntervalMs(), d);
+            }
+        }
+        saveUploadState();
+    }
 
-                    boolean hasVariables = false;
+    @Override
+    public String[] getEventTopics() {
+        return new String[] {EventTopics.STATE_TOPIC};
+    }
 
-                    DeviceVariableContext dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.BAROMETRIC_PRESSURE_INHG);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now);
-                    }
-                    dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.DEW_PT_F);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now) || hasVariables;
-                    }
-                    dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.OUTDOOR_TEMP_F);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now) || hasVariables;
-                    }
-                    dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.OUTDOOR_RELATIVE_HUMIDITY);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now) || hasVariables;
-                    }
-                    dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.WIND_DIRECTION_DEGREES);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now) || hasVariables;
-                    }
-                    dvctx = DeviceVariableContext.create(deviceContext, VariableConstants.WIND_SPEED_MPH);
-                    if (hasDeviceVariableState(dvctx)) {
-                        hasVariables = appendVariableToURL(getDeviceVariableState(dvctx), url, now) || hasVariables;
-                    }
+    @Override
+    public void onHobsonEvent(HobsonEvent event) {
+        if (event instanceof DeviceVariablesUpdateEvent) {
+            long now = System.currentTimeMillis();
+            for (DeviceVariableUpdate update : ((DeviceVariablesUpdateEvent)event).getUpdates()) {
+                onVariableUpdate(update.getContext(), update.getNewValue(), update.getTimestamp(), now);
+            }
+        }
+    }
 
-                    if (hasVariables) {
-                        logger.debug("Calling update URL: {}", url.toString());
-                        try {
-                            httpChannel.sendHttpRequest(new URI(url.toString()), HttpRequest.Method.GET, null, null);
-                            pendingRequest = true;
-                        } catch (URISyntaxException e) {
-                            logger.error("Error creating update URL", e);
-                        }
-                    } else {
-                        logger.debug("No variable updates available; bypassing update");
+    void onVariableUpdate(DeviceVariableContext dvctx, long now) {
+        onVariableUpdate(dvctx, null, null, now);
+    }
+
+    /**
+     * Processes a variable update for any stations bound to the variable's device. Sampled variables are recorded
+     * for aggregation and, in RapidFire mode, an upload is scheduled.
+     *
+     * @param dvctx the variable context
+     * @param value the new value (or null if unknown)
+     * @param time the time of the update (or null to use the current time)
+     * @param now the current time
+     */
+    void onVariableUpdate(DeviceVariableContext dvctx, Object value, Long time, long now) {
+        WeatherVariable wv = (dvctx != null) ? WeatherVariable.forName(dvctx.getName()) : null;
+        if (wv != null) {
+            long t = (time != null) ? time : now;
+            onStationVariableUpdate(primaryStation, dvctx, wv, value, t, now);
+            for (Station station : additionalStations) {
+                onStationVariableUpdate(station, dvctx, wv, value, t, now);
+            }
+        }
+    }
+
+    private void onStationVariableUpdate(Station station, DeviceVariableContext dvctx, WeatherVariable wv, Object value, long time, long now) {
+        if (dvctx.getDeviceContext().equals(station.getDeviceContext())) {
+            if (wv.isSampled() && value instanceof Number) {
+                station.getSamples(wv).add(time, ((Number)value).doubleValue());
+            }
+            RapidFireScheduler scheduler = rapidFireScheduler;
+            if (scheduler != null) {
+                scheduler.onChange(station, now);
+            }
+            if (station.isAwaitingDevice()) {
+                // the device has been published so there's no need to wait for the next probe
+                getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshAwaitingStations(System.currentTimeMillis());
                     }
-                } catch (UnsupportedEncodingException uee) {
-                    logger.error("Unable to create Weather Underground URL", uee);
-                } catch (HobsonNotFoundException nfe) {
-                    logger.warn("Unable to locate weather station device: {}; not sending any data this interval. The weather station plugin may still be starting up. If this condition persists there is a problem.", deviceContext);
-                }
+                });
             }
-        } else {
-            logger.debug("A previous request is still pending; bypassing update");
         }
     }
 
+    @Override
+    public boolean onRapidFireFlush(Station station, long now) {
+        // if a request is still outstanding or the station is being refreshed elsewhere, the scheduler tries again
+        if (isStationBusy(station, now) || !refreshStation(station, now, true)) {
+            return false;
+        }
+        sendQueuedRequests();
+        return true;
+    }
+
     @Override
     public void onHttpResponse(HttpResponse response, Object context) {
-        clearPendingRequest();
+        // the Hobson HTTP client only exposes the body already decoded, so responses that arrive here are always
+        // decoded; only responses read by PooledHttpChannel (see onHttpResult()) are classified without decoding
+        String body;
         try {
-            String s = response.getBody();
-            if (response.getStatusCode() == 200 && s != null && s.startsWith("success")) {
-                logger.debug("Update successful");
-            } else {
-                logger.error("Failed to send update ({}): {}", response.getStatusCode(), response);
-            }
+            body = response.getBody();
         } catch (IOException e) {
             logger.error("Error processing HTTP response", e);
+            completeRequest(context, UploadOutcome.TRANSPORT_ERROR);
+            return;
         }
+        onHttpResult(response.getStatusCode(), (body != null) ? new ResponseBody(body) : null, context);
+    }
+
+    @Override
+    public void onHttpResult(int statusCode, ResponseBody body, Object context) {
+        UploadOutcome outcome = getServiceForContext(context).getUploader().classify(statusCode, body);
+        if (outcome == UploadOutcome.SUCCESS) {
+            logger.debug("Update successful for {}", context);
+        } else {
+            // the body is only decoded here, on the failure path
+            logger.error("Failed to send update for {} ({}, {}): {}", context, outcome, statusCode, (body != null) ? body.toString() : null);
+        }
+        completeRequest(context, outcome);
     }
 
     @Override
     public void onHttpRequestFailure(Throwable cause, Object context) {
-        clearPendingRequest();
-        logger.error("Error calling update URL", cause);
+        logger.error("Error calling update URL for " + context, cause);
+        completeRequest(context, UploadOutcome.TRANSPORT_ERROR);
     }
 
     void setPwsId(String pwsId) {
-        this.pwsId = pwsId;
+        primaryStation.setPwsId(pwsId);
     }
 
     void setPwsPassword(String pwsPassword) {
-        this.pwsPassword = pwsPassword;
+        primaryStation.setPwsPassword(pwsPassword);
     }
 
     void setDeviceContext(DeviceContext deviceContext) {
-        this.deviceContext = deviceContext;
+        primaryStation.setDeviceContext(deviceContext);
+    }
+
+    /**
+     * Sets the primary station's credentials for an upload service other than Weather Underground.
+     *
+     * @param uploaderId the uploader ID
+     * @param id the station ID (or null to stop uploading to the service)
+     * @param key the station password or key
+     */
+    void setCredentials(String uploaderId, String id, String key) {
+        primaryStation.setCredentials(uploaderId, id, key);
+    }
+
+    /**
+     * Sets the Weather Underground update URLs (e.g. to point the plugin at a local test server).
+     *
+     * @param updateUrl the standard update URL
+     * @param rapidFireUpdateUrl the RapidFire update URL
+     */
+    void setUpdateUrls(String updateUrl, String rapidFireUpdateUrl) {
+        setUploader(new WundergroundUploader(updateUrl, rapidFireUpdateUrl));
+    }
+
+    /**
+     * Replaces the uploader for a service (e.g. to point the plugin at a local test server).
+     *
+     * @param uploader the uploader; the service it replaces is the one with the same ID
+     */
+    void setUploader(Uploader uploader) {
+        for (UploadService service : services) {
+            if (service.getUploader().getId().equals(uploader.getId())) {
+                service.setUploader(uploader);
+            }
+        }
+        for (Station station : getAllStations()) {
+            station.clearDestinations();
+        }
+    }
+
+    /**
+     * Enables or disables persistent connections. When enabled, uploads are sent through a PooledHttpChannel
+     * that keeps connections to the upload services open and caches their DNS lookups.
+     *
+     * @param enabled whether persistent connections are enabled
+     */
+    synchronized void setPersistentConnections(boolean enabled) {
+        if (enabled && pooledHttpChannel == null) {
+            pooledHttpChannel = new PooledHttpChannel(this, POOL_MAX_IDLE_PER_HOST, POOL_IDLE_TIMEOUT_MS, DNS_TTL_MS, CONNECTION_TIMEOUT_MS);
+            httpChannel = pooledHttpChannel;
+        } else if (!enabled && pooledHttpChannel != null) {
+            httpChannel = defaultHttpChannel;
+            pooledHttpChannel.shutdown();
+            pooledHttpChannel = null;
+        }
+    }
+
+    synchronized PooledHttpChannel getPooledHttpChannel() {
+        return pooledHttpChannel;
+    }
+
+    void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+    }
+
+    /**
+     * Enables or disables RapidFire mode. When enabled, periodic refreshes are bypassed and stations are instead
+     * uploaded to the real-time endpoint shortly after their variables change.
+     *
+     * @param enabled whether RapidFire is enabled
+     * @param minIntervalMs the minimum time between uploads for a station
+     * @param coalesceWindowMs the amount of time to wait for additional changes before sending an upload
+     */
+    synchronized void setRapidFire(boolean enabled, long minIntervalMs, long coalesceWindowMs) {
+        if (rapidFireScheduler != null) {
+            rapidFireScheduler.shutdown();
+            rapidFireScheduler = null;
+        }
+        if (enabled) {
+            for (Station station : getAllStations()) {
+                station.clearRapidFireDirty();
+            }
+            rapidFireScheduler = new RapidFireScheduler(getExecutor(), coalesceWindowMs, minIntervalMs, this);
+        }
+    }
+
+    /**
+     * Sets the outbox used to retain observations that could not be sent. Retained observations are replayed in
+     * order, one at a time, once an upload succeeds.
+     *
+     * @param outbox the outbox (or null to disable)
+     * @param backfillRate the maximum number of retained observations to replay per minute
+     */
+    synchronized void setOutbox(ObservationOutbox outbox, int backfillRate) {
+        if (outboxDrainer != null) {
+            outboxDrainer.cancel(false);
+            outboxDrainer = null;
+        }
+        if (this.outbox != null && this.outbox != outbox) {
+            this.outbox.close();
+        }
+        this.outbox = outbox;
+        if (outbox != null && backfillRate > 0) {
+            long period = 60000 / backfillRate;
+            outboxDrainer = getExecutor().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    drainOutbox();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the oldest retained observation if connectivity appears to be up and no other replay is in progress.
+     * An observation for a station whose credentials have been rejected is kept (and holds up the rest of the
+     * outbox) until the station is reconfigured rather than being re-sent with the same credentials.
+     */
+    void drainOutbox() {
+        ObservationOutbox ob = outbox;
+        if (ob != null && linkUp && wunderground.getCircuitBreaker().isClosed() && replayInFlight.compareAndSet(false, true)) {
+            ObservationOutbox.Record r = ob.peek();
+            Station station = (r != null) ? findStation(r.getPwsId()) : null;
+            Destination destination = (station != null) ? getDestination(station, wunderground) : null;
+            if (destination != null && destination.hasAuthFailed()) {
+                logger.debug("The credentials for {} were rejected; not replaying retained observations", destination);
+                replayInFlight.set(false);
+            } else if (destination != null && !wunderground.tryAcquireInFlight(maxConcurrentUploads)) {
+                // replays only use spare upload slots; the next drain will try again
+                replayInFlight.set(false);
+            } else if (destination != null) {
+                try {
+                    URI uri = new URI(destination.getUrlTemplate(false).begin(new StringBuilder(), formatDateUtc(r.getObservedAt())).append(r.getParams()).toString());
+                    UploadRequest request = new UploadRequest(destination, uri, r.getParams(), r.getObservedAt(), r.getSequence());
+                    logger.debug("Replaying retained observation: {}", request);
+                    sendRequest(request);
+                } catch (UnsupportedEncodingException | URISyntaxException e) {
+                    logger.error("Unable to create replay URL; discarding retained observation", e);
+                    wunderground.releaseInFlight();
+                    ob.remove(r.getSequence());
+                    replayInFlight.set(false);
+                }
+            } else {
+                if (r != null) {
+                    logger.warn("Discarding retained observation for unknown station: {}", r.getPwsId());
+                    ob.remove(r.getSequence());
+                }
+                replayInFlight.set(false);
+            }
+        }
+    }
+
+    /**
+     * Sets the station log import for the primary station. The import is pumped periodically (and whenever one of
+     * its rows completes) until it finishes or stops; any previous import is stopped at its checkpoint.
+     *
+     * @param backfillImport the import (or null to stop importing)
+     */
+    synchronized void setBackfillImport(final BackfillImport backfillImport) {
+        if (importPump != null) {
+            importPump.cancel(false);
+            importPump = null;
+        }
+        if (this.backfillImport != null && this.backfillImport != backfillImport) {
+            this.backfillImport.stop();
+        }
+        this.backfillImport = backfillImport;
+        if (backfillImport != null && !backfillImport.isFinished()) {
+            importPump = getExecutor().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    backfillImport.pump(System.currentTimeMillis());
+                }
+            }, 0, IMPORT_PUMP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            // the import cancels the pump itself when it finishes or stops (e.g. on an authentication error)
+            backfillImport.setPumpTask(importPump);
+        }
+    }
+
+    @Override
+    public boolean isAcceptingImports() {
+        Destination destination = primaryStation.isConfigured() ? getDestination(primaryStation, wunderground) : null;
+        return (destination != null && !destination.hasAuthFailed() && linkUp && wunderground.getCircuitBreaker().isClosed());
+    }
+
+    @Override
+    public boolean sendImport(BackfillImport source, long sequence, long observedAt, String params) {
+        Destination destination = getDestination(primaryStation, wunderground);
+        if (destination != null) {
+            // imports only use spare upload slots so that they never hold up live uploads
+            if (!wunderground.tryAcquireInFlight(maxConcurrentUploads)) {
+                return false;
+            }
+            try {
+                URI uri = new URI(destination.getUrlTemplate(false).begin(new StringBuilder(), formatDateUtc(observedAt)).append(params).toString());
+                UploadRequest request = new UploadRequest(destination, uri, params, observedAt);
+                request.setImport(source, sequence);
+                logger.trace("Importing observation: {}", request);
+                sendRequest(request);
+                return true;
+            } catch (UnsupportedEncodingException | URISyntaxException e) {
+                logger.error("Unable to create import URL; discarding observation", e);
+                wunderground.releaseInFlight();
+            }
+        }
+        source.onComplete(sequence, UploadOutcome.REJECTED, System.currentTimeMillis());
+        return true;
+    }
+
+    @Override
+    public void onImportFailed(long observedAt, String params) {
+        ObservationOutbox ob = outbox;
+        if (ob != null && primaryStation.getPwsId() != null) {
+            if (!ob.append(primaryStation.getPwsId(), observedAt, params)) {
+                logger.error("Imported observation too large to retain; discarding it");
+            }
+        } else {
+            logger.debug("Discarding unsent imported observation");
+        }
+    }
+
+    synchronized void addStation(Station station) {
+        List<Station> stations = new ArrayList<>(additionalStations);
+        stations.add(station);
+        additionalStations = stations;
+    }
+
+    /**
+     * Sets the in-flight request limits.
+     *
+     * @param requestWindow the maximum number of requests that can be in flight for a single station
+     * @param requestTimeoutMs the time after which an in-flight request is abandoned
+     */
+    void setRequestLimits(int requestWindow, long requestTimeoutMs) {
+        this.requestWindow = Math.max(1, requestWindow);
+        this.requestTimeoutMs = requestTimeoutMs;
+    }
+
+    /**
+     * Sets the amount a variable must change by before it is considered worth uploading.
+     *
+     * @param variable the variable
+     * @param deadband the deadband (0 to upload any change)
+     */
+    void setDeadband(WeatherVariable variable, double deadband) {
+        deadbands[variable.ordinal()] = Math.max(0, deadband);
+    }
+
+    /**
+     * Sets the maximum time between uploads for a station whose values haven't changed significantly.
+     *
+     * @param maxSilenceMs the time in milliseconds
+     */
+    void setMaxSilence(long maxSilenceMs) {
+        this.maxSilenceMs = maxSilenceMs;
+    }
+
+    /**
+     * Sets the store used to persist station upload state across restarts and restores any state it contains.
+     *
+     * @param stateStore the store (or null to disable)
+     */
+    void setUploadStateStore(UploadStateStore stateStore) {
+        this.stateStore = stateStore;
+        if (stateStore != null) {
+            int count = stateStore.restore(getAllStations());
+            if (count > 0) {
+                logger.debug("Restored upload state for {} station(s)", count);
+            }
+        }
+    }
+
+    /**
+     * Writes station upload state to the state store if it has changed since it was last written.
+     */
+    void saveUploadState() {
+        UploadStateStore store = stateStore;
+        if (store != null && uploadStateDirty.getAndSet(false) && !store.save(getAllStations())) {
+            uploadStateDirty.set(true);
+        }
+    }
+
+    /**
+     * Refreshes any stations whose device couldn't be found on their last refresh so that their first upload is
+     * sent as soon as the device is published. The device probe is stopped once all devices have been found.
+     *
+     * @param now the current time
+     */
+    void refreshAwaitingStations(long now) {
+        boolean awaiting = false;
+        boolean realtime = (rapidFireScheduler != null);
+        for (Station station : getAllStations()) {
+            if (station.isAwaitingDevice()) {
+                refreshStation(station, now, realtime);
+                awaiting = awaiting || station.isAwaitingDevice();
+            }
+        }
+        sendQueuedRequests();
+        if (!awaiting) {
+            stopDeviceProbe();
+        }
+    }
+
+    /**
+     * Sets the bounds within which the refresh interval adapts.
+     *
+     * @param minIntervalMs the minimum refresh interval
+     * @param maxIntervalMs the maximum refresh interval
+     */
+    void setRefreshBounds(long minIntervalMs, long maxIntervalMs) {
+        refreshScheduler.setBounds(minIntervalMs, maxIntervalMs, DEFAULT_REFRESH_INTERVAL_MS);
+    }
+
+    /**
+     * Returns the refresh scheduler's most recent decision.
+     *
+     * @return an AdaptiveRefreshScheduler.Decision
+     */
+    AdaptiveRefreshScheduler.Decision getRefreshDecision() {
+        return refreshScheduler.getDecision();
+    }
+
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the Weather Underground circuit breaker.
+     *
+     * @param circuitBreaker the circuit breaker
+     */
+    void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        wunderground.setCircuitBreaker(circuitBreaker);
     }
 
     boolean hasPendingRequest() {
-        return pendingRequest;
+        return primaryStation.hasPendingRequest();
     }
 
     void clearPendingRequest() {
-        pendingRequest = false;
+        clearPendingRequests(primaryStation);
+    }
+
+    int getInFlightCount() {
+        int count = 0;
+        for (UploadService service : services) {
+            count += service.getInFlightCount();
+        }
+        return count;
+    }
+
+    int getQueuedRequestCount() {
+        int count = 0;
+        for (Station station : getAllStations()) {
+            count += station.getQueuedRequestCount();
+        }
+        return count;
+    }
+
+    /**
+     * Abandons any in-flight requests whose deadline has passed. Abandoned requests are treated as failures and
+     * any response that arrives for them later is ignored.
+     *
+     * @param now the current time
+     */
+    void expireRequests(long now) {
+        for (UploadRequest request : inFlightRequests.values()) {
+            if (now >= request.getDeadline()) {
+                logger.warn("No response received for {} after {}ms; abandoning it", request, requestTimeoutMs);
+                metrics.onTimeout();
+                completeRequest(request, UploadOutcome.TRANSPORT_ERROR);
+            }
+        }
     }
 
     boolean appendVariableToURL(DeviceVariableState v, StringBuilder url, long now) throws UnsupportedEncodingException {
-        if (v != null && v.getContext().getName() != null && v.getValue() != null && !isVariableStale(v, now)) {
-            if ((!lastVariableUpdate.containsKey(v.getContext().getName()) || now > lastVariableUpdate.get(v.getContext().getName()))) {
-                String queryParam = getQueryParameterForVariable(v.getContext().getName());
-                if (queryParam != null) {
-                    url.append("&").append(queryParam).append("=").append(URLEncoder.encode(v.getValue().toString(), "UTF8"));
-                    setLastVariableUpdate(v.getContext().getName(), v.getLastUpdate());
-                    return true;
-                }
+        return appendVariableToURL(primaryStation, v, url, now);
+    }
+
+    boolean appendVariableToURL(Station station, DeviceVariableState v, StringBuilder url, long now) throws UnsupportedEncodingException {
+        WeatherVariable wv = (v != null) ? WeatherVariable.forName(v.getContext().getName()) : null;
+        return (wv != null && appendVariableToURL(station, wv, v, url, now));
+    }
+
+    private boolean appendVariableToURL(Station station, WeatherVariable wv, DeviceVariableState v, StringBuilder url, long now) throws UnsupportedEncodingException {
+        if (v != null && v.getValue() != null) {
+            if (isVariableStale(v, now)) {
+                metrics.onStaleVariable();
+            } else if (v.getLastUpdate() == null || v.getLastUpdate() > station.getLastVariableUpdate(wv)) {
+                UpdateUrlTemplate.appendParameter(url, wv.getQueryParameter(), v.getValue(), wv.getPrecision());
+                return true;
             } else {
-                logger.error("Detected stale variable: {}", v.getContext().getName());
+                logger.trace("No new value for {} since the last upload", wv.getVariableName());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Appends values aggregated from the samples received since previous uploads: the peak wind speed, the
+     * 2-minute average wind speed and direction and (if the device doesn't report it) the rain over the past hour.
+     *
+     * @param station the station
+     * @param states the station's current variable states indexed by WeatherVariable ordinal
+     * @param url the URL to append to
+     * @param now the current time
+     */
+    private void appendAggregatesToURL(Station station, DeviceVariableState[] states, StringBuilder url, long now) {
+        SampleBuffer wind = station.getSamples(WeatherVariable.WIND_SPEED);
+        if (states[WeatherVariable.WIND_GUST.ordinal()] == null) {
+            appendAggregateToURL(url, WeatherVariable.WIND_GUST.getQueryParameter(), wind.getMax(now - GUST_WINDOW_MS), WeatherVariable.WIND_GUST.getPrecision());
+        }
+        appendAggregateToURL(url, "windspdmph_avg2m", wind.getMean(now - WIND_AVG_WINDOW_MS), WeatherVariable.WIND_SPEED.getPrecision());
+        appendAggregateToURL(url, "winddir_avg2m", station.getSamples(WeatherVariable.WIND_DIRECTION).getVectorMeanDegrees(now - WIND_AVG_WINDOW_MS), WeatherVariable.WIND_DIRECTION.getPrecision());
+        if (states[WeatherVariable.RAIN_HOUR.ordinal()] == null) {
+            appendAggregateToURL(url, WeatherVariable.RAIN_HOUR.getQueryParameter(), station.getSamples(WeatherVariable.RAIN_DAY).getAccumulation(now - RAIN_WINDOW_MS), WeatherVariable.RAIN_HOUR.getPrecision());
+        }
+    }
+
+    /**
+     * Indicates whether a variable value has moved beyond its deadband since it was last uploaded.
+     *
+     * @param station the station
+     * @param wv the variable
+     * @param value the current value
+     *
+     * @return a boolean
+     */
+    private boolean isSignificantChange(Station station, WeatherVariable wv, Object value) {
+        if (value instanceof Number) {
+            double last = station.getLastSentValue(wv);
+            if (!Double.isNaN(last)) {
+                double delta = Math.abs(((Number)value).doubleValue() - last);
+                return (delta > 0 && delta >= deadbands[wv.ordinal()] - DEADBAND_EPSILON);
+            }
+        }
+        return true;
+    }
+
+    private void appendAggregateToURL(StringBuilder url, String queryParam, double value, int precision) {
+        if (!Double.isNaN(value)) {
+            url.append('&').append(queryParam).append('=');
+            UpdateUrlTemplate.appendDecimal(url, value, precision);
+        }
+    }
+
+    /**
+     * Builds and queues an upload for a station. Refreshes can be triggered from several threads (periodic
+     * refreshes, RapidFire flushes), so a station that is already being refreshed is skipped.
+     *
+     * @param station the station
+     * @param now the current time
+     * @param realtime whether to send to the RapidFire endpoint
+     *
+     * @return false if the station was skipped because it was already being refreshed
+     */
+    private boolean refreshStation(Station station, long now, boolean realtime) {
+        if (station.beginRefresh()) {
+            try {
+                buildStationRequest(station, now, realtime);
+            } finally {
+                station.endRefresh();
+            }
+            return true;
+        } else {
+            logger.debug("A refresh is already in progress for {}; bypassing update", station);
+            metrics.onSkippedPending();
+            return false;
+        }
+    }
+
+    private void buildStationRequest(Station station, long now, boolean realtime) {
+        if (station.getDeviceContext() != null && station.getPwsId() != null && station.getPwsPassword() != null) {
+            Destination[] destinations = getDestinations(station);
+            int ready = getReadyDestinations(destinations, now);
+            if (ready == 0) {
+                if (isStationBusy(station, now)) {
+                    logger.debug("A previous request is still pending for {}; bypassing update", station);
+                    metrics.onSkippedPending();
+                } else {
+                    logger.debug("No upload services are currently accepting updates for {}; bypassing update", station);
+                }
+                return;
+            }
+
+            try {
+                DeviceVariableState[] states = readVariableStates(station);
+                if (station.setAwaitingDevice(false)) {
+                    logger.info("Located weather station device: {}", station.getDeviceContext());
+                }
+                StringBuilder params = paramBuffer.get();
+                params.setLength(0);
+                boolean hasVariables = false;
+
+                boolean hasChanges = false;
+                for (WeatherVariable wv : WeatherVariable.all()) {
+                    int ix = wv.ordinal();
+                    if (appendVariableToURL(station, wv, states[ix], params, now)) {
+                        hasVariables = true;
+                        hasChanges = hasChanges || isSignificantChange(station, wv, states[ix].getValue());
+                    } else {
+                        states[ix] = null;
+                    }
+                }
+
+                if (!realtime) {
+                    refreshScheduler.onStationRefresh(hasChanges);
+                }
+
+                if (hasVariables && !hasChanges && now - station.getLastUploadTime() < maxSilenceMs) {
+                    logger.debug("No significant variable changes for {}; bypassing update", station);
+                    metrics.onSuppressed();
+                } else if (hasVariables) {
+                    appendAggregatesToURL(station, states, params, now);
+                    if (queueUploads(destinations, ready, params, now, realtime)) {
+                        station.onUpload(states, now);
+                        uploadStateDirty.set(true);
+                    }
+                } else {
+                    logger.debug("No variable updates available for {}; bypassing update", station);
+                    metrics.onNoNewData();
+                }
+            } catch (UnsupportedEncodingException uee) {
+                logger.error("Unable to create update URL", uee);
+            } catch (HobsonNotFoundException nfe) {
+                if (station.setAwaitingDevice(true)) {
+                    logger.warn("Unable to locate weather station device: {}; data will be sent as soon as it is published. The weather station plugin may still be starting up. If this condition persists there is a problem.", station.getDeviceContext());
+                }
+                startDeviceProbe();
+            }
+        }
+    }
+
+    /**
+     * Queues an observation for each of a station's ready destinations, encoded for the destination's service.
+     *
+     * @param destinations the station's destinations
+     * @param ready a bit mask of the destinations to queue uploads for
+     * @param params the observation's variable query parameters
+     * @param now the current time
+     * @param realtime whether this is a RapidFire update
+     *
+     * @return true if at least one upload was queued
+     *
+     * @throws UnsupportedEncodingException on failure
+     */
+    private boolean queueUploads(Destination[] destinations, int ready, CharSequence params, long now, boolean realtime) throws UnsupportedEncodingException {
+        boolean queued = false;
+        String dateUtc = null;
+        RapidFireScheduler scheduler = rapidFireScheduler;
+        for (int i=0; i < destinations.length; i++) {
+            if ((ready & (1 << i)) != 0) {
+                Destination destination = destinations[i];
+                Uploader uploader = destination.getUploader();
+                boolean rt = (realtime && scheduler != null && uploader.supportsRealtime());
+                if (dateUtc == null && !uploader.supportsDateNow()) {
+                    dateUtc = formatDateUtc(now);
+                }
+                StringBuilder url = destination.getUrlTemplate(rt).begin(urlBuffer.get(), uploader.supportsDateNow() ? "now" : dateUtc);
+                int paramsStart = url.length();
+                url.append(params);
+                int paramsEnd = url.length();
+                uploader.appendSuffix(url, rt, rt ? scheduler.getMinIntervalMs() : 0);
+                try {
+                    if (destination.queueUpload(new UploadRequest(destination, new URI(url.toString()), paramsStart, paramsEnd, now), now)) {
+                        queued = true;
+                    } else {
+                        logger.debug("A request was queued for {} while refreshing; bypassing update", destination);
+                        metrics.onSkippedPending();
+                    }
+                } catch (URISyntaxException e) {
+                    logger.error("Error creating update URL", e);
+                }
             }
         }
+        return queued;
+    }
+
+    /**
+     * Returns the destinations that can accept a new upload: those whose credentials haven't been rejected, that
+     * have no request outstanding and whose service's minimum upload interval has elapsed.
+     *
+     * @param destinations the destinations
+     * @param now the current time
+     *
+     * @return a bit mask of destination indexes
+     */
+    private int getReadyDestinations(Destination[] destinations, long now) {
+        int ready = 0;
+        for (int i=0; i < destinations.length; i++) {
+            Destination d = destinations[i];
+            if (!d.hasAuthFailed() && !d.isBusy(requestWindow) && d.isDue(now)) {
+                ready |= (1 << i);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Returns a station's destinations, creating them from its current credentials if necessary.
+     *
+     * @param station the station
+     *
+     * @return an array of Destination
+     */
+    private Destination[] getDestinations(Station station) {
+        Destination[] ds = station.getDestinations();
+        if (ds == null) {
+            List<Destination> list = new ArrayList<>(services.length);
+            for (UploadService service : services) {
+                String[] c = (service == wunderground) ? new String[] {station.getPwsId(), station.getPwsPassword()} : station.getCredentials(service.getUploader().getId());
+                if (c != null && c[0] != null && c[1] != null) {
+                    try {
+                        list.add(new Destination(station, service, c[0], c[1]));
+                    } catch (UnsupportedEncodingException e) {
+                        logger.error("Unable to create " + service + " URL for " + station, e);
+                    }
+                }
+            }
+            ds = station.initDestinations(list.toArray(new Destination[list.size()]));
+        }
+        return ds;
+    }
+
+    private Destination getDestination(Station station, UploadService service) {
+        for (Destination d : getDestinations(station)) {
+            if (d.getService() == service) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the current state of all mapped variables for a station's device in a single pass. Each variable costs
+     * one lookup: published variables are read directly, and variables the device was previously found not to
+     * publish are only checked for (so that a failed lookup isn't repeated on every refresh).
+     *
+     * @param station the station
+     *
+     * @return a (reused) array of variable states indexed by WeatherVariable ordinal; entries are null for
+     * variables the device doesn't publish
+     *
+     * @throws HobsonNotFoundException if the station's device can't be found
+     */
+    private DeviceVariableState[] readVariableStates(Station station) {
+        DeviceVariableContext[] ctxs = station.getVariableContexts();
+        DeviceVariableState[] states = stateBuffer.get();
+        int missing = station.getMissingVariables();
+        for (int i=0; i < ctxs.length; i++) {
+            int bit = 1 << i;
+            if ((missing & bit) != 0 && !hasDeviceVariableState(ctxs[i])) {
+                states[i] = null;
+                continue;
+            }
+            try {
+                states[i] = getDeviceVariableState(ctxs[i]);
+                missing &= ~bit;
+            } catch (HobsonNotFoundException e) {
+                // either the variable or the whole device is missing; the check throws again if it's the device
+                if (hasDeviceVariableState(ctxs[i])) {
+                    throw e;
+                }
+                states[i] = null;
+                missing |= bit;
+            }
+        }
+        station.setMissingVariables(missing);
+        return states;
+    }
+
+    /**
+     * Sends queued destination requests until each service's concurrent upload limit is reached. Any requests that
+     * can't be sent remain queued until an in-flight request completes.
+     *
+     * This can run concurrently on any thread. A request is only sent by the thread that reserves both a service
+     * and a per-destination in-flight slot and then dequeues it; every slot release and every enqueue is followed
+     * by another pass, so a queued request can't be stranded.
+     */
+    private void sendQueuedRequests() {
+        long now = System.currentTimeMillis();
+        int full = 0;
+        for (Station station : getAllStations()) {
+            Destination[] ds = station.getDestinations();
+            if (ds != null) {
+                for (Destination d : ds) {
+                    UploadService service = d.getService();
+                    int bit = 1 << service.getIndex();
+                    UploadRequest request = d.getQueuedRequest();
+                    if ((full & bit) == 0 && request != null && request.getNotBefore() <= now) {
+                        if (!service.tryAcquireInFlight(maxConcurrentUploads)) {
+                            full |= bit;
+                            continue;
+                        }
+                        if (!d.tryAcquireInFlight(requestWindow)) {
+                            service.releaseInFlight();
+                            continue;
+                        }
+                        if (!d.dequeueRequest(request)) {
+                            releaseInFlight(d, false);
+                            continue;
+                        }
+                        if (service.getCircuitBreaker().allowRequest(now)) {
+                            logger.debug("Calling update URL: {}", request.getURI());
+                            sendRequest(request);
+                        } else {
+                            logger.debug("{} is unavailable; retaining observation for {}", service, station);
+                            releaseInFlight(d, false);
+                            retainObservation(request);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void releaseInFlight(Destination destination, boolean replay) {
+        if (!replay) {
+            destination.decrementInFlightCount();
+        }
+        destination.getService().releaseInFlight();
+    }
+
+    /**
+     * Schedules a failed request to be re-sent after a backoff delay. The request stays queued for its destination
+     * in the meantime so that newer observations don't overtake it.
+     *
+     * @param request the request
+     * @param outcome the outcome of the failed attempt
+     * @param now the current time
+     *
+     * @return false if the request could not be re-queued
+     */
+    private boolean scheduleRetry(UploadRequest request, UploadOutcome outcome, long now) {
+        Destination destination = request.getDestination();
+        long delay = retryPolicy.getDelay(outcome, request.getRetryCount());
+        // the request must be fully updated before it's queued since another thread may send it immediately
+        request.setNotBefore(now + delay);
+        request.incrementRetryCount();
+        if (destination.queueRequest(request)) {
+            logger.debug("Retrying {} in {}ms", request, delay);
+            metrics.onRetry();
+            getExecutor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendQueuedRequests();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
         return false;
     }
 
+    /**
+     * Retains an observation that could not be sent in the outbox. Only Weather Underground observations are
+     * retained since the outbox is replayed to Weather Underground.
+     *
+     * @param request the request
+     */
+    private void retainObservation(UploadRequest request) {
+        ObservationOutbox ob = outbox;
+        if (request.getDestination().getService() != wunderground) {
+            logger.debug("Discarding unsent observation for {}", request.getDestination());
+        } else if (ob != null && !ob.append(request.getStation().getPwsId(), request.getObservedAt(), request.getParams())) {
+            logger.error("Observation too large to retain; discarding it");
+        }
+    }
+
+    private void onAuthenticationFailure(Destination destination) {
+        logger.error("The credentials for {} were rejected; no further updates will be sent to it until it is reconfigured", destination);
+        destination.setAuthFailed(true);
+        setStatus(PluginStatus.failed("The " + destination.getUploader().getName() + " credentials for " + destination.getStation().getPwsId() + " were rejected"));
+    }
+
+    /**
+     * Assigns a request its correlation ID and deadline, records it as in-flight and sends it. The request must
+     * already hold a service in-flight slot (and, for destination requests, a per-destination slot).
+     *
+     * @param request the request to send
+     */
+    private void sendRequest(UploadRequest request) {
+        request.setId(nextRequestId.incrementAndGet());
+        request.setSentAt(System.nanoTime());
+        request.setDeadline(System.currentTimeMillis() + requestTimeoutMs);
+        metrics.onSent();
+        // the request must be visible as in-flight before it is sent since the response can arrive on another thread
+        inFlightRequests.put(request.getId(), request);
+        httpChannel.sendHttpRequest(request.getURI(), HttpRequest.Method.GET, null, request);
+    }
+
+    /**
+     * Removes a request from the in-flight list.
+     *
+     * @param request the request
+     *
+     * @return false if the request was not in flight (e.g. it was already abandoned)
+     */
+    private boolean removeInFlightRequest(UploadRequest request) {
+        if (inFlightRequests.remove(request.getId(), request)) {
+            releaseInFlight(request.getDestination(), request.isReplay() || request.isImport());
+            return true;
+        }
+        return false;
+    }
+
+    private void clearPendingRequests(Station station) {
+        for (UploadRequest request : inFlightRequests.values()) {
+            if (request.getStation() == station && !request.isReplay() && !request.isImport()) {
+                removeInFlightRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether a station can't accept a new upload because its destinations still have requests
+     * outstanding (as opposed to having been rejected or rate limited).
+     *
+     * @param station the station
+     * @param now the current time
+     *
+     * @return a boolean
+     */
+    private boolean isStationBusy(Station station, long now) {
+        boolean busy = false;
+        for (Destination d : getDestinations(station)) {
+            if (!d.hasAuthFailed()) {
+                if (d.isBusy(requestWindow)) {
+                    busy = true;
+                } else if (d.isDue(now)) {
+                    return false;
+                }
+            }
+        }
+        return busy;
+    }
+
+    /**
+     * Completes an upload request. Transient failures are retried with backoff and, once retries are exhausted,
+     * retained in the outbox for later delivery.
+     *
+     * @param context the request context
+     * @param outcome the outcome of the request
+     */
+    private void completeRequest(Object context, UploadOutcome outcome) {
+        boolean success = (outcome == UploadOutcome.SUCCESS);
+        long now = System.currentTimeMillis();
+        UploadRequest request = (context instanceof UploadRequest) ? (UploadRequest)context : null;
+        UploadService service = getServiceForContext(context);
+        ObservationOutbox ob = outbox;
+
+        if (request != null) {
+            if (!removeInFlightRequest(request)) {
+                logger.debug("Ignoring response for abandoned request: {}", request);
+                return;
+            }
+        } else {
+            clearPendingRequests(primaryStation);
+        }
+
+        if (success) {
+            metrics.onSuccess();
+        } else {
+            metrics.onFailure();
+        }
+        long latency = -1;
+        if (request != null && request.getSentAt() > 0) {
+            latency = (System.nanoTime() - request.getSentAt()) / 1000000;
+            metrics.recordLatency(latency);
+        }
+        refreshScheduler.onResponse(outcome.isTransient(), latency);
+
+        if (outcome.isTransient()) {
+            service.getCircuitBreaker().onFailure(now);
+            if (service == wunderground) {
+                linkUp = false;
+            }
+        } else {
+            // any response from the service (even a rejection) shows that it's reachable, so a half-open circuit
+            // closes here rather than waiting for a probe that happens to succeed
+            service.getCircuitBreaker().onSuccess();
+            if (service == wunderground) {
+                linkUp = true;
+            }
+            if (outcome == UploadOutcome.AUTH_ERROR) {
+                Destination destination = (request != null) ? request.getDestination() : getDestination(primaryStation, wunderground);
+                if (destination != null) {
+                    onAuthenticationFailure(destination);
+                }
+            }
+        }
+
+        if (request != null && request.isReplay()) {
+            // rejected observations are discarded; anything else stays in the outbox for another attempt
+            if (ob != null && (success || outcome == UploadOutcome.REJECTED)) {
+                ob.remove(request.getOutboxSequence());
+            }
+            replayInFlight.set(false);
+        } else if (request != null && !request.isImport() && !success && outcome != UploadOutcome.REJECTED) {
+            if (!retryPolicy.shouldRetry(outcome, request.getRetryCount()) || !service.getCircuitBreaker().isClosed() || !scheduleRetry(request, outcome, now)) {
+                retainObservation(request);
+            }
+        }
+
+        sendQueuedRequests();
+
+        if (request != null && request.isImport()) {
+            // imports retry (and retain) their own rows so that they can keep their place in the log; completing a
+            // row refills the import's pipeline, which happens only after queued live requests have taken any free
+            // slots
+            request.getBackfillImport().onComplete(request.getImportSequence(), outcome, now);
+        }
+    }
+
+    UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Logs the current upload metrics and writes them to the plugin's data directory so they can be collected
+     * by external monitoring. This runs on its own schedule rather than as part of each refresh so that the
+     * snapshot and file write stay out of the refresh path.
+     */
+    void publishMetrics() {
+        Map<String,Long> snapshot = metrics.getSnapshot();
+        PooledHttpChannel pool = getPooledHttpChannel();
+        if (pool != null) {
+            snapshot.putAll(pool.getSnapshot());
+        }
+        BackfillImport bi = backfillImport;
+        if (bi != null) {
+            snapshot.putAll(bi.getSnapshot(System.currentTimeMillis()));
+        }
+        AdaptiveRefreshScheduler.Decision d = refreshScheduler.getDecision();
+        snapshot.put("refresh.intervalMs", d.getIntervalMs());
+        snapshot.put("refresh.reason", (long)d.getReason().ordinal());
+        snapshot.put("circuit.state", (long)wunderground.getCircuitBreaker().getState().ordinal());
+        for (UploadService service : services) {
+            if (service != wunderground) {
+                snapshot.put("circuit." + service.getUploader().getId() + ".state", (long)service.getCircuitBreaker().getState().ordinal());
+            }
+        }
+        logger.debug("Upload metrics: {}", snapshot);
+
+        if (metricsFile != null) {
+            Properties p = new Properties();
+            for (Map.Entry<String,Long> e : snapshot.entrySet()) {
+                p.setProperty(e.getKey(), Long.toString(e.getValue()));
+            }
+            File tmp = new File(metricsFile.getPath() + ".tmp");
+            try (OutputStream os = new FileOutputStream(tmp)) {
+                p.store(os, "Weather Underground upload metrics");
+            } catch (IOException e) {
+                logger.error("Unable to write metrics file", e);
+                return;
+            }
+            if (!tmp.renameTo(metricsFile)) {
+                logger.error("Unable to write metrics file: {}", metricsFile);
+            }
+        }
+    }
+
+    private List<Station> getAllStations() {
+        List<Station> stations = new ArrayList<>(additionalStations.size() + 1);
+        stations.add(primaryStation);
+        stations.addAll(additionalStations);
+        return stations;
+    }
+
+    private UploadService getServiceForContext(Object context) {
+        return (context instanceof UploadRequest) ? ((UploadRequest)context).getDestination().getService() : wunderground;
+    }
+
+    private Station findStation(String pwsId) {
+        for (Station station : getAllStations()) {
+            if (pwsId.equals(station.getPwsId())) {
+                return station;
+            }
+        }
+        return null;
+    }
+
+    private static CircuitBreaker createCircuitBreaker() {
+        return new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MS, CIRCUIT_MAX_OPEN_MS);
+    }
+
+    synchronized private ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Weather Underground");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
     private void processConfig(PropertyContainer config) {
         setDeviceContext((DeviceContext)config.getPropertyValue("device"));
         setPwsId((String)config.getPropertyValue("pwsId"));
         setPwsPassword((String)config.getPropertyValue("pwsPassword"));
+        setCredentials(PwsWeatherUploader.ID, (String)config.getPropertyValue("pwsWeatherId"), (String)config.getPropertyValue("pwsWeatherPassword"));
+        setCredentials(WowUploader.ID, (String)config.getPropertyValue("wowSiteId"), (String)config.getPropertyValue("wowAuthKey"));
+
+        Object o = config.getPropertyValue("maxConcurrentUploads");
+        setMaxConcurrentUploads(o instanceof Number ? ((Number)o).intValue() : DEFAULT_MAX_CONCURRENT_UPLOADS);
+
+        o = config.getPropertyValue("requestWindow");
+        int window = o instanceof Number ? ((Number)o).intValue() : DEFAULT_REQUEST_WINDOW;
+        o = config.getPropertyValue("requestTimeout");
+        setRequestLimits(window, o instanceof Number ? (long)(((Number)o).doubleValue() * 1000) : DEFAULT_REQUEST_TIMEOUT_MS);
+        startRequestSweeper();
+
+        processDeadbands((String)config.getPropertyValue("deadbands"));
+        o = config.getPropertyValue("minRefreshInterval");
+        long minRefresh = o instanceof Number ? (long)(((Number)o).doubleValue() * 1000) : DEFAULT_MIN_REFRESH_INTERVAL_MS;
+        o = config.getPropertyValue("maxRefreshInterval");
+        setRefreshBounds(minRefresh, o instanceof Number ? (long)(((Number)o).doubleValue() * 1000) : DEFAULT_MAX_REFRESH_INTERVAL_MS);
+
+        o = config.getPropertyValue("maxSilence");
+        setMaxSilence(o instanceof Number ? (long)(((Number)o).doubleValue() * 1000) : DEFAULT_MAX_SILENCE_MS);
+
+        setPersistentConnections(Boolean.TRUE.equals(config.getPropertyValue("persistentConnections")));
+
+        o = config.getPropertyValue("rapidFireInterval");
+        long rapidFireInterval = o instanceof Number ? (long)(((Number)o).doubleValue() * 1000) : DEFAULT_RAPID_FIRE_INTERVAL_MS;
+        setRapidFire(Boolean.TRUE.equals(config.getPropertyValue("rapidFire")), rapidFireInterval, RAPID_FIRE_COALESCE_MS);
+
+        o = config.getPropertyValue("outboxSize");
+        int outboxSize = o instanceof Number ? ((Number)o).intValue() : DEFAULT_OUTBOX_SIZE;
+        o = config.getPropertyValue("backfillRate");
+        int backfillRate = o instanceof Number ? ((Number)o).intValue() : DEFAULT_BACKFILL_RATE;
+        configureOutbox(outboxSize, backfillRate);
+
+        o = config.getPropertyValue("importRate");
+        configureImport((String)config.getPropertyValue("importFile"), o instanceof Number ? ((Number)o).intValue() : DEFAULT_IMPORT_RATE);
+
+        processAdditionalStations(
+            (Collection<DeviceContext>)config.getPropertyValue("additionalDevices"),
+            (String)config.getPropertyValue("additionalStations")
+        );
 
-        if (deviceContext != null && pwsId != null && pwsId.trim().length() > 0 && pwsPassword != null && pwsPassword.trim().length() > 0) {
+        // a configuration update re-enables any destinations whose credentials were rejected
+        for (Station station : getAllStations()) {
+            Destination[] ds = station.getDestinations();
+            if (ds != null) {
+                for (Destination d : ds) {
+                    if (d.hasAuthFailed()) {
+                        station.clearDestinations();
+                        break;
+                    }
+                }
+            }
+        }
+
+        if (primaryStation.isConfigured()) {
             setStatus(PluginStatus.running());
         } else {
             setStatus(PluginStatus.notConfigured(""));
         }
     }
 
-    private String getQueryParameterForVariable(String varName) {
-        switch (varName) {
-            case VariableConstants.BAROMETRIC_PRESSURE_INHG:
-                return "baromin";
-            case VariableConstants.DEW_PT_F:
-                return "dewptf";
-            case VariableConstants.OUTDOOR_TEMP_F:
-                return "tempf";
-            case VariableConstants.OUTDOOR_RELATIVE_HUMIDITY:
-                return "humidity";
-            case VariableConstants.WIND_DIRECTION_DEGREES:
-                return "winddir";
-            case VariableConstants.WIND_SPEED_MPH:
-                return "windspeedmph";
-            default:
-                return null;
+    /**
+     * Creates (or updates) the additional stations. Each device is matched to its credentials by device ID so the
+     * order in which the devices are configured doesn't matter.
+     *
+     * @param devices the additional devices
+     * @param bindings the credential bindings (see parseStationBindings())
+     */
+    synchronized void processAdditionalStations(Collection<DeviceContext> devices, String bindings) {
+        List<Station> stations = new ArrayList<>();
+        if (devices != null && !devices.isEmpty()) {
+            Map<String,String[]> credentials = parseStationBindings(bindings);
+            for (DeviceContext dctx : devices) {
+                String[] c = credentials.get(dctx.getDeviceId());
+                if (c != null) {
+                    String id = c[0];
+                    String password = c[1];
+                    Station station = findAdditionalStation(dctx, id);
+                    if (station == null) {
+                        station = new Station(dctx, id, password);
+                    } else {
+                        station.setPwsPassword(password);
+                    }
+                    if (station.isConfigured()) {
+                        stations.add(station);
+                    }
+                } else {
+                    logger.error("No PWS ID/password configured for device {}; it will be ignored", dctx);
+                }
+            }
+        }
+        additionalStations = stations;
+    }
+
+    List<Station> getAdditionalStations() {
+        return additionalStations;
+    }
+
+    /**
+     * Parses additional station credential bindings of the form "deviceId=pwsId:password,deviceId=pwsId:password".
+     * A backslash escapes the character that follows it so that passwords can contain commas (and backslashes).
+     * Device and PWS IDs are trimmed but passwords are used exactly as written; a password runs from the first colon
+     * after the PWS ID to the next unescaped comma.
+     *
+     * @param s the bindings (may be null)
+     *
+     * @return a map of device ID to a {pwsId, password} pair
+     */
+    static Map<String,String[]> parseStationBindings(String s) {
+        Map<String,String[]> bindings = new HashMap<>();
+        if (s != null) {
+            StringBuilder entry = new StringBuilder();
+            int eq = -1;
+            int colon = -1;
+            for (int i=0; i <= s.length(); i++) {
+                char c = (i < s.length()) ? s.charAt(i) : ',';
+                if (c == '\\' && i + 1 < s.length()) {
+                    entry.append(s.charAt(++i));
+                } else if (c == ',') {
+                    if (eq > -1 && colon > -1) {
+                        String deviceId = entry.substring(0, eq).trim();
+                        String pwsId = entry.substring(eq + 1, colon).trim();
+                        if (deviceId.length() > 0 && pwsId.length() > 0) {
+                            bindings.put(deviceId, new String[] {pwsId, entry.substring(colon + 1)});
+                        } else {
+                            logger.error("Ignoring invalid station credentials for device: {}", deviceId);
+                        }
+                    } else if (entry.toString().trim().length() > 0) {
+                        logger.error("Ignoring invalid station credentials; expected deviceId=pwsId:password");
+                    }
+                    entry.setLength(0);
+                    eq = -1;
+                    colon = -1;
+                } else {
+                    if (c == '=' && eq == -1) {
+                        eq = entry.length();
+                    } else if (c == ':' && eq > -1 && colon == -1) {
+                        colon = entry.length();
+                    }
+                    entry.append(c);
+                }
+            }
+        }
+        return bindings;
+    }
+
+    private void processDeadbands(String s) {
+        deadbands = createDefaultDeadbands();
+        if (s != null && s.trim().length() > 0) {
+            for (String pair : s.split(",")) {
+                String[] kv = pair.split("=");
+                WeatherVariable wv = (kv.length == 2) ? WeatherVariable.forQueryParameter(kv[0].trim()) : null;
+                if (wv != null) {
+                    try {
+                        setDeadband(wv, Double.parseDouble(kv[1].trim()));
+                    } catch (NumberFormatException e) {
+                        logger.error("Invalid deadband for {}: {}", kv[0], kv[1]);
+                    }
+                } else {
+                    logger.error("Ignoring invalid deadband: {}", pair);
+                }
+            }
+        }
+    }
+
+    private static double[] createDefaultDeadbands() {
+        double[] d = new double[WeatherVariable.count()];
+        for (WeatherVariable wv : WeatherVariable.all()) {
+            d[wv.ordinal()] = wv.getDeadband();
+        }
+        return d;
+    }
+
+    synchronized private void startRequestSweeper() {
+        if (requestSweeper == null) {
+            requestSweeper = getExecutor().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    expireRequests(System.currentTimeMillis());
+                }
+            }, REQUEST_SWEEP_INTERVAL_MS, REQUEST_SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized private void startMetricsPublisher() {
+        if (metricsPublisher == null) {
+            metricsPublisher = getExecutor().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    publishMetrics();
+                }
+            }, METRICS_PUBLISH_INTERVAL_MS, METRICS_PUBLISH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized private void startRefreshTask() {
+        if (refreshTask == null) {
+            refreshTask = getExecutor().schedule(refreshCheck, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized private void rescheduleRefreshTask(long delayMs) {
+        // a check that was already running when the task was stopped mustn't restart it
+        if (refreshTask != null) {
+            refreshTask = getExecutor().schedule(refreshCheck, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized private void stopRefreshTask() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    synchronized private boolean isRefreshPending() {
+        return (refreshTask != null && !refreshTask.isDone());
+    }
+
+    synchronized private void startDeviceProbe() {
+        if (deviceProbe == null) {
+            deviceProbe = getExecutor().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    refreshAwaitingStations(System.currentTimeMillis());
+                }
+            }, DEVICE_PROBE_INTERVAL_MS, DEVICE_PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized private void stopDeviceProbe() {
+        if (deviceProbe != null) {
+            deviceProbe.cancel(false);
+            deviceProbe = null;
+        }
+    }
+
+    private void configureOutbox(int size, int backfillRate) {
+        ObservationOutbox ob = outbox;
+        if (size > 0) {
+            if (ob == null || ob.getCapacity() != size) {
+                if (ob != null) {
+                    ob.close();
+                }
+                try {
+                    ob = new ObservationOutbox(getDataFile(OUTBOX_FILENAME), size);
+                } catch (IOException e) {
+                    logger.error("Unable to open outbox; unsent observations will not be retained", e);
+                    ob = null;
+                }
+            }
+            setOutbox(ob, backfillRate);
+        } else {
+            setOutbox(null, 0);
+        }
+    }
+
+    private void configureImport(String path, int rate) {
+        BackfillImport bi = backfillImport;
+        if (path != null && path.trim().length() > 0) {
+            File f = new File(path.trim());
+            if (bi == null || !bi.getLogFile().equals(f) || bi.getRatePerMinute() != Math.max(1, rate)) {
+                // the previous import must be stopped first so that its checkpoint is saved before it is reopened
+                setBackfillImport(null);
+                bi = new BackfillImport(f, getDataFile(IMPORT_CHECKPOINT_FILENAME), maxConcurrentUploads, rate, retryPolicy, this);
+                try {
+                    bi.open();
+                    setBackfillImport(bi);
+                } catch (IOException e) {
+                    logger.error("Unable to open station log " + f + "; it will not be imported", e);
+                    setBackfillImport(null);
+                }
+            }
+        } else if (bi != null) {
+            setBackfillImport(null);
         }
     }
 
-    private void setLastVariableUpdate(String varName, Long time) {
-        if (time != null) {
-            lastVariableUpdate.put(varName, time);
+    private Station findAdditionalStation(DeviceContext dctx, String pwsId) {
+        for (Station station : additionalStations) {
+            if (station.isSameBinding(dctx, pwsId)) {
+                return station;
+            }
         }
+        return null;
+    }
+
+    static String formatDateUtc(long time) throws UnsupportedEncodingException {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return URLEncoder.encode(sdf.format(new Date(time)), "UTF8");
     }
 
     private boolean isVariableStale(DeviceVariableState v, long now) {
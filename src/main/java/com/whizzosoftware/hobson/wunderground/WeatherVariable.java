@@ -0,0 +1,147 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The mapping between Hobson device variables and Weather Underground update query parameters. Variables are
+ * read and sent in declaration order; per-station state is kept in arrays indexed by ordinal. Readings that have no
+ * VariableConstants entry use the names defined by WeatherStationVariables.
+ */
+enum WeatherVariable {
+    BAROMETRIC_PRESSURE(VariableConstants.BAROMETRIC_PRESSURE_INHG, "baromin", 3, 0.01),
+    DEW_POINT(VariableConstants.DEW_PT_F, "dewptf", 1, 0.1),
+    OUTDOOR_TEMP(VariableConstants.OUTDOOR_TEMP_F, "tempf", 1, 0.1),
+    OUTDOOR_HUMIDITY(VariableConstants.OUTDOOR_RELATIVE_HUMIDITY, "humidity", 1, 1),
+    WIND_DIRECTION(VariableConstants.WIND_DIRECTION_DEGREES, "winddir", 0, 10, 120000),
+    WIND_SPEED(VariableConstants.WIND_SPEED_MPH, "windspeedmph", 1, 1, 600000),
+    WIND_GUST(WeatherStationVariables.WIND_GUST_MPH, "windgustmph", 1, 1),
+    RAIN_HOUR(WeatherStationVariables.RAIN_HOUR_IN, "rainin", 2, 0.01),
+    RAIN_DAY(WeatherStationVariables.RAIN_DAY_IN, "dailyrainin", 2, 0.01, 3600000),
+    SOLAR_RADIATION(WeatherStationVariables.SOLAR_RADIATION_WM2, "solarradiation", 1, 5),
+    UV_INDEX(WeatherStationVariables.UV_INDEX, "UV", 1, 1),
+    INDOOR_TEMP(VariableConstants.INDOOR_TEMP_F, "indoortempf", 1, 0.1),
+    INDOOR_HUMIDITY(VariableConstants.INDOOR_RELATIVE_HUMIDITY, "indoorhumidity", 1, 1);
+
+    private static final WeatherVariable[] VALUES = values();
+    private static final Map<String,WeatherVariable> BY_NAME = new HashMap<>();
+    private static final Map<String,WeatherVariable> BY_QUERY_PARAMETER = new HashMap<>();
+
+    static {
+        for (WeatherVariable wv : VALUES) {
+            BY_NAME.put(wv.getVariableName(), wv);
+            BY_QUERY_PARAMETER.put(wv.getQueryParameter(), wv);
+        }
+    }
+
+    private String variableName;
+    private String queryParameter;
+    private int precision;
+    private double deadband;
+    private long sampleWindowMs;
+
+    WeatherVariable(String variableName, String queryParameter, int precision, double deadband) {
+        this(variableName, queryParameter, precision, deadband, 0);
+    }
+
+    WeatherVariable(String variableName, String queryParameter, int precision, double deadband, long sampleWindowMs) {
+        this.variableName = variableName;
+        this.queryParameter = queryParameter;
+        this.precision = precision;
+        this.deadband = deadband;
+        this.sampleWindowMs = sampleWindowMs;
+    }
+
+    String getVariableName() {
+        return variableName;
+    }
+
+    String getQueryParameter() {
+        return queryParameter;
+    }
+
+    /**
+     * Returns the maximum number of decimal places sent for the variable.
+     *
+     * @return an int
+     */
+    int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns the default amount the variable must change by before it is considered worth uploading (i.e. the
+     * level of sensor noise that is ignored).
+     *
+     * @return a double
+     */
+    double getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * Indicates whether every update of the variable is retained between uploads so that aggregates (gusts,
+     * averages, accumulations) can be computed from it.
+     *
+     * @return a boolean
+     */
+    boolean isSampled() {
+        return (sampleWindowMs > 0);
+    }
+
+    /**
+     * Returns the longest period over which the variable's samples are aggregated (e.g. an hour for rain totals).
+     * Samples older than this are no longer needed.
+     *
+     * @return a time in milliseconds (or 0 if the variable isn't sampled)
+     */
+    long getSampleWindowMs() {
+        return sampleWindowMs;
+    }
+
+    /**
+     * Returns all variables. Unlike values(), this does not create a new array on each call.
+     *
+     * @return an array of WeatherVariable (which must not be modified)
+     */
+    static WeatherVariable[] all() {
+        return VALUES;
+    }
+
+    static int count() {
+        return VALUES.length;
+    }
+
+    /**
+     * Returns the variable with a particular Hobson variable name.
+     *
+     * @param variableName the variable name
+     *
+     * @return a WeatherVariable (or null if the variable isn't sent to Weather Underground)
+     */
+    static WeatherVariable forName(String variableName) {
+        return (variableName != null) ? BY_NAME.get(variableName) : null;
+    }
+
+    /**
+     * Returns the variable sent as a particular Weather Underground query parameter.
+     *
+     * @param queryParameter the query parameter name
+     *
+     * @return a WeatherVariable (or null if there isn't one)
+     */
+    static WeatherVariable forQueryParameter(String queryParameter) {
+        return (queryParameter != null) ? BY_QUERY_PARAMETER.get(queryParameter) : null;
+    }
+}
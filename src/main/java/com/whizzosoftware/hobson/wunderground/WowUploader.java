@@ -0,0 +1,76 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An uploader for the Met Office Weather Observations Website (WOW). It accepts the Weather Underground variable
+ * parameters but identifies stations by site ID and authentication key and reports failures with HTTP status codes.
+ */
+class WowUploader implements Uploader {
+    static final String ID = "wow";
+    static final String UPDATE_URL = "http://wow.metoffice.gov.uk/automaticreading";
+    static final long MIN_INTERVAL_MS = 60000;
+
+    private final String updateUrl;
+
+    WowUploader() {
+        this(UPDATE_URL);
+    }
+
+    WowUploader(String updateUrl) {
+        this.updateUrl = updateUrl;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "WOW";
+    }
+
+    @Override
+    public UpdateUrlTemplate createUrlTemplate(String id, String key, boolean realtime) throws UnsupportedEncodingException {
+        return new UpdateUrlTemplate(updateUrl, "siteid", id, "siteAuthenticationKey", key);
+    }
+
+    @Override
+    public boolean supportsRealtime() {
+        return false;
+    }
+
+    @Override
+    public boolean supportsDateNow() {
+        return false;
+    }
+
+    @Override
+    public void appendSuffix(StringBuilder url, boolean realtime, long realtimeIntervalMs) {
+        url.append("&softwaretype=Hobson");
+    }
+
+    @Override
+    public long getMinInterval() {
+        return MIN_INTERVAL_MS;
+    }
+
+    @Override
+    public UploadOutcome classify(int statusCode, ResponseBody body) {
+        if (statusCode >= 200 && statusCode < 300) {
+            return UploadOutcome.SUCCESS;
+        } else {
+            return UploadOutcome.classify(statusCode, body);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An uploader for the Weather Underground PWS update service.
+ */
+class WundergroundUploader implements Uploader {
+    static final String ID = "wunderground";
+    static final String UPDATE_URL = "http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php";
+    static final String RAPID_FIRE_UPDATE_URL = "http://rtupdate.wunderground.com/weatherstation/updateweatherstation.php";
+
+    private final String updateUrl;
+    private final String rapidFireUpdateUrl;
+
+    WundergroundUploader() {
+        this(UPDATE_URL, RAPID_FIRE_UPDATE_URL);
+    }
+
+    WundergroundUploader(String updateUrl, String rapidFireUpdateUrl) {
+        this.updateUrl = updateUrl;
+        this.rapidFireUpdateUrl = rapidFireUpdateUrl;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "Weather Underground";
+    }
+
+    @Override
+    public UpdateUrlTemplate createUrlTemplate(String id, String key, boolean realtime) throws UnsupportedEncodingException {
+        return new UpdateUrlTemplate(realtime ? rapidFireUpdateUrl : updateUrl, id, key);
+    }
+
+    @Override
+    public boolean supportsRealtime() {
+        return true;
+    }
+
+    @Override
+    public boolean supportsDateNow() {
+        return true;
+    }
+
+    @Override
+    public void appendSuffix(StringBuilder url, boolean realtime, long realtimeIntervalMs) {
+        if (realtime) {
+            url.append("&realtime=1&rtfreq=");
+            UpdateUrlTemplate.appendDecimal(url, realtimeIntervalMs / 1000.0, 3);
+        }
+    }
+
+    @Override
+    public long getMinInterval() {
+        return 0;
+    }
+
+    @Override
+    public UploadOutcome classify(int statusCode, ResponseBody body) {
+        return UploadOutcome.classify(statusCode, body);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveRefreshSchedulerTest {
+    @Test
+    public void testChangeRatio() {
+        AdaptiveRefreshScheduler s = new AdaptiveRefreshScheduler(60000, 900000, 300000);
+        assertEquals(AdaptiveRefreshScheduler.Reason.INITIAL, s.getDecision().getReason());
+        assertTrue(s.isDue(0));
+
+        // every station changed so the interval is halved down to the minimum
+        long now = 1000000;
+        for (long expected : new long[] {150000, 75000, 60000}) {
+            s.onStationRefresh(true);
+            s.onStationRefresh(true);
+            AdaptiveRefreshScheduler.Decision d = s.onRefreshComplete(now);
+            assertEquals(AdaptiveRefreshScheduler.Reason.FAST_CHANGE, d.getReason());
+            assertEquals(expected, d.getIntervalMs());
+            assertEquals(1.0, d.getChangeRatio(), 0);
+            assertEquals(now + expected, d.getNextRefreshAt());
+            assertFalse(s.isDue(now + expected - 1));
+            assertTrue(s.isDue(now + expected));
+            now += expected;
+        }
+
+        // half the stations changed so the interval is kept
+        s.onStationRefresh(true);
+        s.onStationRefresh(false);
+        AdaptiveRefreshScheduler.Decision d = s.onRefreshComplete(now);
+        assertEquals(AdaptiveRefreshScheduler.Reason.STEADY, d.getReason());
+        assertEquals(60000, d.getIntervalMs());
+        assertEquals(0.5, d.getChangeRatio(), 0);
+
+        // nothing changed so the interval grows up to the maximum
+        for (long expected : new long[] {90000, 135000, 202500, 303750, 455625, 683437, 900000, 900000}) {
+            s.onStationRefresh(false);
+            d = s.onRefreshComplete(now);
+            assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, d.getReason());
+            assertEquals(expected, d.getIntervalMs());
+        }
+
+        // a refresh with no stations counts as idle
+        d = s.onRefreshComplete(now);
+        assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, d.getReason());
+        assertEquals(0.0, d.getChangeRatio(), 0);
+    }
+
+    @Test
+    public void testBackoff() {
+        AdaptiveRefreshScheduler s = new AdaptiveRefreshScheduler(60000, 900000, 300000);
+
+        // transient failures take precedence over station changes
+        for (int i=0; i < 2; i++) {
+            s.onResponse(true, 100);
+        }
+        assertTrue(s.getDecision().getErrorRate() < AdaptiveRefreshScheduler.ERROR_RATE_THRESHOLD);
+        s.onStationRefresh(true);
+        AdaptiveRefreshScheduler.Decision d = s.onRefreshComplete(0);
+        assertEquals(AdaptiveRefreshScheduler.Reason.BACKOFF, d.getReason());
+        assertEquals(600000, d.getIntervalMs());
+        assertEquals(0.36, d.getErrorRate(), 0.0001);
+
+        // the error rate decays as requests succeed
+        for (int i=0; i < 3; i++) {
+            s.onResponse(false, 100);
+        }
+        s.onStationRefresh(true);
+        d = s.onRefreshComplete(0);
+        assertEquals(AdaptiveRefreshScheduler.Reason.FAST_CHANGE, d.getReason());
+        assertEquals(300000, d.getIntervalMs());
+
+        // slow responses also cause a backoff; unknown latencies are ignored
+        for (int i=0; i < 20; i++) {
+            s.onResponse(false, 10000);
+            s.onResponse(false, -1);
+        }
+        s.onStationRefresh(true);
+        d = s.onRefreshComplete(0);
+        assertEquals(AdaptiveRefreshScheduler.Reason.BACKOFF, d.getReason());
+        assertEquals(600000, d.getIntervalMs());
+        assertTrue(d.getLatencyMs() >= AdaptiveRefreshScheduler.LATENCY_THRESHOLD_MS);
+        assertEquals(900000, s.onRefreshComplete(0).getIntervalMs());
+    }
+
+    @Test
+    public void testSetBounds() {
+        AdaptiveRefreshScheduler s = new AdaptiveRefreshScheduler(60000, 900000, 1000);
+        assertEquals(60000, s.getDecision().getIntervalMs());
+
+        // an inverted range collapses to the maximum
+        s.setBounds(120000, 30000, 300000);
+        assertEquals(30000, s.getMinIntervalMs());
+        assertEquals(30000, s.getMaxIntervalMs());
+        assertEquals(30000, s.getDecision().getIntervalMs());
+
+        // once a decision has been made, the current interval is kept but clamped
+        s.setBounds(60000, 900000, 300000);
+        assertEquals(300000, s.getDecision().getIntervalMs());
+        s.onRefreshComplete(0);
+        assertEquals(450000, s.getDecision().getIntervalMs());
+        s.setBounds(60000, 400000, 300000);
+        assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, s.getDecision().getReason());
+        assertEquals(400000, s.getDecision().getIntervalMs());
+        assertEquals(450000, s.getDecision().getNextRefreshAt());
+
+        // a later configuration change doesn't fall back to the initial interval
+        s.setBounds(60000, 900000, 300000);
+        assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, s.getDecision().getReason());
+        assertEquals(400000, s.getDecision().getIntervalMs());
+    }
+
+    @Test
+    public void testEarlyWakeUp() {
+        AdaptiveRefreshScheduler s = new AdaptiveRefreshScheduler(60000, 900000, 300000);
+        assertEquals(0, s.getDelayMs(0));
+        s.onStationRefresh(true);
+        s.onStationRefresh(false);
+        assertEquals(300000, s.onRefreshComplete(0).getIntervalMs());
+        assertEquals(300000, s.getDelayMs(0));
+
+        // a wake-up that lands a few milliseconds early only waits for the remainder, so the refresh still happens
+        // one interval after the previous one rather than a whole interval later
+        assertFalse(s.isDue(299995));
+        assertEquals(5, s.getDelayMs(299995));
+        assertTrue(s.isDue(299995 + s.getDelayMs(299995)));
+        assertEquals(0, s.getDelayMs(300010));
+    }
+}
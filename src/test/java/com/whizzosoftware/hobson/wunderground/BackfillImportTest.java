@@ -0,0 +1,192 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+
+public class BackfillImportTest {
+    @Test
+    public void testPipelineAndResume() throws Exception {
+        File log = StationLogReaderTest.createLog(
+            "time,tempf\n" +
+            "1431000000,70\n" +
+            "1431000060,71\n" +
+            "1431000120,72\n" +
+            "1431000180,73\n"
+        );
+        File checkpoint = File.createTempFile("import", ".properties");
+        checkpoint.deleteOnExit();
+        MockListener listener = new MockListener();
+
+        BackfillImport bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(1, 0, 0), listener);
+        bi.open();
+
+        // rows are rate limited to one per second
+        bi.pump(0);
+        assertEquals(1, listener.sequences.size());
+        assertEquals(1431000000000L, (long)listener.observedAts.get(0));
+        assertEquals("&tempf=70", listener.params.get(0));
+        bi.pump(500);
+        assertEquals(1, listener.sequences.size());
+        bi.pump(1000);
+        assertEquals(2, listener.sequences.size());
+
+        // an out of order completion doesn't move the checkpoint
+        bi.onComplete(1, UploadOutcome.SUCCESS, 1000);
+        Map<String,Long> snapshot = bi.getSnapshot(1000);
+        assertEquals(0, (long)snapshot.get("import.rows"));
+        assertEquals(1, (long)snapshot.get("import.succeeded"));
+        assertEquals(1, (long)snapshot.get("import.inFlight"));
+
+        // a transient failure is retried ahead of new rows
+        bi.onComplete(0, UploadOutcome.SERVER_ERROR, 2000);
+        assertEquals(3, listener.sequences.size());
+        assertEquals(0, (long)listener.sequences.get(2));
+
+        // once retries are exhausted the row is handed back and the checkpoint advances
+        bi.onComplete(0, UploadOutcome.SERVER_ERROR, 3000);
+        assertEquals(1, listener.failed.size());
+        snapshot = bi.getSnapshot(3000);
+        assertEquals(2, (long)snapshot.get("import.rows"));
+        assertEquals(1, (long)snapshot.get("import.failed"));
+        assertEquals(40, (long)snapshot.get("import.rowsPerMinute"));
+        assertEquals(4, listener.sequences.size());
+        assertEquals(1431000120000L, (long)listener.observedAts.get(3));
+
+        // a stopped import resumes from its checkpoint, re-sending the row that was in flight
+        bi.stop();
+        listener = new MockListener();
+        bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(1, 0, 0), listener);
+        bi.open();
+        bi.pump(0);
+        bi.pump(1000);
+        assertEquals(2, listener.sequences.size());
+        assertEquals(1431000120000L, (long)listener.observedAts.get(0));
+        assertEquals(1431000180000L, (long)listener.observedAts.get(1));
+        bi.onComplete(0, UploadOutcome.SUCCESS, 1000);
+        assertFalse(bi.isFinished());
+        bi.onComplete(1, UploadOutcome.SUCCESS, 1000);
+        assertTrue(bi.isFinished());
+        snapshot = bi.getSnapshot(1000);
+        assertEquals(4, (long)snapshot.get("import.rows"));
+        assertEquals(3, (long)snapshot.get("import.succeeded"));
+        assertEquals(1, (long)snapshot.get("import.failed"));
+        assertEquals(log.length(), (long)snapshot.get("import.offset"));
+        assertEquals(1, (long)snapshot.get("import.complete"));
+
+        // a completed log isn't imported again (or pumped)
+        bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(1, 0, 0), listener);
+        bi.open();
+        assertTrue(bi.isFinished());
+        FutureTask<Void> pumpTask = createPumpTask();
+        bi.setPumpTask(pumpTask);
+        assertTrue(pumpTask.isCancelled());
+    }
+
+    @Test
+    public void testPauseAndAuthFailure() throws Exception {
+        File log = StationLogReaderTest.createLog("time,tempf\n1431000000,70\n1431000060,71\n");
+        File checkpoint = File.createTempFile("import", ".properties");
+        checkpoint.deleteOnExit();
+        MockListener listener = new MockListener();
+
+        BackfillImport bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(1, 0, 0), listener);
+        bi.open();
+        FutureTask<Void> pumpTask = createPumpTask();
+        bi.setPumpTask(pumpTask);
+
+        // nothing is sent while the listener isn't accepting rows
+        listener.accepting = false;
+        bi.pump(0);
+        assertEquals(0, listener.sequences.size());
+        listener.accepting = true;
+        bi.pump(1000);
+        assertEquals(2, listener.sequences.size());
+
+        // rejected credentials stop the import and its pump
+        assertFalse(pumpTask.isCancelled());
+        bi.onComplete(0, UploadOutcome.AUTH_ERROR, 2000);
+        assertTrue(pumpTask.isCancelled());
+        bi.onComplete(1, UploadOutcome.SUCCESS, 2000);
+        bi.pump(10000);
+        assertEquals(2, listener.sequences.size());
+        assertEquals(0, (long)bi.getSnapshot(10000).get("import.succeeded"));
+        assertFalse(bi.isFinished());
+    }
+
+    @Test
+    public void testDeclinedRowsStayPending() throws Exception {
+        File log = StationLogReaderTest.createLog("time,tempf\n1431000000,70\n1431000060,71\n");
+        File checkpoint = File.createTempFile("import", ".properties");
+        checkpoint.deleteOnExit();
+        MockListener listener = new MockListener();
+
+        BackfillImport bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(1, 0, 0), listener);
+        bi.open();
+
+        // a declined row isn't in flight and keeps its rate limit permit
+        listener.declining = true;
+        bi.pump(0);
+        assertEquals(0, listener.sequences.size());
+        assertEquals(0, (long)bi.getSnapshot(0).get("import.inFlight"));
+
+        listener.declining = false;
+        bi.pump(0);
+        assertEquals(1, listener.sequences.size());
+        assertEquals(0, (long)listener.sequences.get(0));
+        assertEquals(1431000000000L, (long)listener.observedAts.get(0));
+        assertEquals(1, (long)bi.getSnapshot(0).get("import.inFlight"));
+    }
+
+    private static FutureTask<Void> createPumpTask() {
+        return new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+    }
+
+    private static class MockListener implements BackfillImport.Listener {
+        boolean accepting = true;
+        boolean declining;
+        List<Long> sequences = new ArrayList<>();
+        List<Long> observedAts = new ArrayList<>();
+        List<String> params = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+
+        @Override
+        public boolean isAcceptingImports() {
+            return accepting;
+        }
+
+        @Override
+        public boolean sendImport(BackfillImport source, long sequence, long observedAt, String params) {
+            if (declining) {
+                return false;
+            }
+            this.sequences.add(sequence);
+            this.observedAts.add(observedAt);
+            this.params.add(params);
+            return true;
+        }
+
+        @Override
+        public void onImportFailed(long observedAt, String params) {
+            failed.add(params);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+    @Test
+    public void testOpenAndProbe() {
+        CircuitBreaker cb = new CircuitBreaker(3, 1000, 3000);
+        assertTrue(cb.allowRequest(0));
+
+        // failures below the threshold leave it closed
+        cb.onFailure(0);
+        cb.onFailure(0);
+        assertTrue(cb.allowRequest(0));
+        cb.onSuccess();
+        cb.onFailure(0);
+        cb.onFailure(0);
+        assertTrue(cb.isClosed());
+
+        // the threshold opens it
+        cb.onFailure(100);
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        assertFalse(cb.allowRequest(500));
+
+        // a single probe is allowed after the open period
+        assertTrue(cb.allowRequest(1100));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, cb.getState());
+        assertFalse(cb.allowRequest(1100));
+
+        // a failed probe re-opens it for twice as long
+        cb.onFailure(1200);
+        assertFalse(cb.allowRequest(2200));
+        assertTrue(cb.allowRequest(3200));
+
+        // the open period is capped
+        cb.onFailure(3200);
+        assertFalse(cb.allowRequest(6100));
+        assertTrue(cb.allowRequest(6200));
+
+        // a successful probe closes it
+        cb.onSuccess();
+        assertTrue(cb.isClosed());
+        assertTrue(cb.allowRequest(6200));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.device.MockDeviceManager;
+import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
+import com.whizzosoftware.hobson.api.event.MockEventManager;
+import com.whizzosoftware.hobson.api.plugin.MockHobsonPlugin;
+import com.whizzosoftware.hobson.api.variable.DeviceProxyVariable;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.api.variable.VariableMask;
+
+/**
+ * Drives a number of simulated weather station devices through the plugin against a StandInServer and reports
+ * end-to-end upload throughput and latency. Each round publishes new values for every device, refreshes the plugin
+ * and waits for all of the resulting uploads to complete.
+ *
+ * It can be run directly from the test classpath:
+ *
+ *     java -cp target/classes:target/test-classes:... com.whizzosoftware.hobson.wunderground.LoadGenerator [stations] [seconds] [concurrency]
+ */
+public class LoadGenerator {
+    private static final long ROUND_TIMEOUT_MS = 30000;
+
+    private int stationCount;
+    private int maxConcurrentUploads;
+    private StandInServer server;
+
+    LoadGenerator(StandInServer server, int stationCount, int maxConcurrentUploads) {
+        this.server = server;
+        this.stationCount = stationCount;
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    /**
+     * Runs the load.
+     *
+     * @param durationMs how long to run for
+     *
+     * @return the results
+     *
+     * @throws Exception on failure
+     */
+    Report run(long durationMs) throws Exception {
+        long now = System.currentTimeMillis();
+        MockDeviceManager dm = new MockDeviceManager();
+        MockEventManager em = new MockEventManager();
+        UrlConnectionHttpChannel channel = new UrlConnectionHttpChannel(maxConcurrentUploads, 10000);
+
+        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin.setDeviceManager(dm);
+        wsPlugin.setEventManager(em);
+
+        WeatherUndergroundPlugin plugin = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        channel.setPlugin(plugin);
+        plugin.setDeviceManager(dm);
+        plugin.setEventManager(em);
+        plugin.setMaxConcurrentUploads(maxConcurrentUploads);
+        plugin.setMaxSilence(0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+
+        MockDeviceProxy[] devices = new MockDeviceProxy[stationCount];
+        for (int i=0; i < stationCount; i++) {
+            devices[i] = new MockDeviceProxy(wsPlugin, "device" + i, DeviceType.WEATHER_STATION);
+            dm.publishDevice(devices[i], null, null);
+            devices[i].publishVariables(
+                new DeviceProxyVariable(DeviceVariableContext.create(devices[i].getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 70.0, now),
+                new DeviceProxyVariable(DeviceVariableContext.create(devices[i].getContext(), VariableConstants.WIND_SPEED_MPH), VariableMask.READ_ONLY, 5.0, now)
+            );
+            if (i == 0) {
+                plugin.setDeviceContext(devices[i].getContext());
+                plugin.setPwsId("pws0");
+                plugin.setPwsPassword("password0");
+            } else {
+                plugin.addStation(new Station(devices[i].getContext(), "pws" + i, "password" + i));
+            }
+        }
+        plugin.setUpdateUrls(server.getUpdateUrl(), server.getUpdateUrl());
+
+        int rounds = 0;
+        long start = System.nanoTime();
+        long end = start + durationMs * 1000000;
+        try {
+            while (System.nanoTime() < end) {
+                long t = System.currentTimeMillis();
+                for (int i=0; i < stationCount; i++) {
+                    devices[i].setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 70.0 + (rounds % 20) + i * 0.1, t);
+                    devices[i].setVariableValue(VariableConstants.WIND_SPEED_MPH, 5.0 + (rounds % 7), t);
+                }
+                plugin.onRefresh(t);
+                if (!awaitRound(plugin)) {
+                    throw new IllegalStateException("Round " + rounds + " did not complete");
+                }
+                rounds++;
+            }
+        } finally {
+            channel.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        UploadMetrics m = plugin.getMetrics();
+        return new Report(stationCount, rounds, m.getSuccessCount(), m.getFailureCount(), elapsed, channel.getSortedLatencies());
+    }
+
+    private boolean awaitRound(WeatherUndergroundPlugin plugin) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + ROUND_TIMEOUT_MS;
+        while (plugin.getInFlightCount() > 0 || plugin.getQueuedRequestCount() > 0) {
+            if (System.currentTimeMillis() > timeout) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int stations = (args.length > 0) ? Integer.parseInt(args[0]) : 500;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+        int concurrency = (args.length > 2) ? Integer.parseInt(args[2]) : 16;
+
+        StandInServer server = new StandInServer();
+        server.setLatency(20, 80);
+        server.setErrorRate(0.01);
+        server.setResetRate(0.005);
+        server.start();
+        try {
+            System.out.println(new LoadGenerator(server, stations, concurrency).run(seconds * 1000L));
+        } finally {
+            server.stop();
+        }
+    }
+
+    static class Report {
+        final int stationCount;
+        final int rounds;
+        final long successCount;
+        final long failureCount;
+        final long elapsedNanos;
+        final long[] latenciesMicros;
+
+        Report(int stationCount, int rounds, long successCount, long failureCount, long elapsedNanos, long[] latenciesMicros) {
+            this.stationCount = stationCount;
+            this.rounds = rounds;
+            this.successCount = successCount;
+            this.failureCount = failureCount;
+            this.elapsedNanos = elapsedNanos;
+            this.latenciesMicros = latenciesMicros;
+        }
+
+        double getUploadsPerSecond() {
+            return successCount * 1000000000.0 / elapsedNanos;
+        }
+
+        /**
+         * Returns a latency percentile.
+         *
+         * @param percentile the percentile (0-100)
+         *
+         * @return the latency in milliseconds
+         */
+        double getLatencyMs(double percentile) {
+            if (latenciesMicros.length == 0) {
+                return 0;
+            }
+            int ix = (int)Math.ceil(latenciesMicros.length * percentile / 100.0) - 1;
+            return latenciesMicros[Math.max(0, Math.min(ix, latenciesMicros.length - 1))] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d stations, %d rounds: %d uploads (%d failed) at %.1f uploads/s; latency p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                stationCount, rounds, successCount, failureCount, getUploadsPerSecond(), getLatencyMs(50), getLatencyMs(95), getLatencyMs(99), getLatencyMs(100));
+        }
+    }
+}
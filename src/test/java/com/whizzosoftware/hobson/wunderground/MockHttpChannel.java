@@ -13,26 +13,55 @@ import com.whizzosoftware.hobson.api.plugin.http.HttpRequest;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 public class MockHttpChannel implements HttpChannel {
-    private List<URI> uriList = new ArrayList<>();
+    private List<URI> uriList = Collections.synchronizedList(new ArrayList<URI>());
+    private List<Object> contextList = Collections.synchronizedList(new ArrayList<Object>());
+    private volatile Listener listener;
 
     @Override
     public void sendHttpRequest(URI uri, HttpRequest.Method method, Map<String, String> headers, Object context) {
         uriList.add(uri);
+        contextList.add(context);
+        Listener l = listener;
+        if (l != null) {
+            l.onSend(uri, context);
+        }
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
     }
 
     int getURICount() {
         return uriList.size();
     }
 
+    boolean waitForURICount(int count, long timeoutMs) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMs;
+        while (uriList.size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return (uriList.size() >= count);
+    }
+
     URI getURI(int ix) {
         return uriList.get(ix);
     }
 
+    Object getContext(int ix) {
+        return contextList.get(ix);
+    }
+
     void clear() {
         uriList.clear();
+        contextList.clear();
+    }
+
+    interface Listener {
+        void onSend(URI uri, Object context);
     }
 }
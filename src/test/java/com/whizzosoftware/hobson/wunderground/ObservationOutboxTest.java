@@ -0,0 +1,95 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+public class ObservationOutboxTest {
+    @Test
+    public void testAppendAndRemove() throws Exception {
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+
+        ObservationOutbox outbox = new ObservationOutbox(f, 3);
+        assertEquals(0, outbox.size());
+        assertNull(outbox.peek());
+
+        assertTrue(outbox.append("foo", 1000, "&tempf=72.5"));
+        assertTrue(outbox.append("bar", 2000, "&tempf=73.5&humidity=40"));
+        assertEquals(2, outbox.size());
+
+        ObservationOutbox.Record r = outbox.peek();
+        assertEquals(0, r.getSequence());
+        assertEquals("foo", r.getPwsId());
+        assertEquals(1000, r.getObservedAt());
+        assertEquals("&tempf=72.5", r.getParams());
+
+        // only the oldest record can be removed
+        outbox.remove(1);
+        assertEquals(2, outbox.size());
+        outbox.remove(0);
+        assertEquals(1, outbox.size());
+        r = outbox.peek();
+        assertEquals("bar", r.getPwsId());
+        assertEquals("&tempf=73.5&humidity=40", r.getParams());
+
+        outbox.close();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+
+        ObservationOutbox outbox = new ObservationOutbox(f, 2);
+        outbox.append("foo", 1000, "&tempf=1");
+        outbox.append("foo", 2000, "&tempf=2");
+        outbox.append("foo", 3000, "&tempf=3");
+        assertEquals(2, outbox.size());
+        assertEquals(1, outbox.getEvictedCount());
+        assertEquals(2000, outbox.peek().getObservedAt());
+
+        // records that don't fit are rejected
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < ObservationOutbox.RECORD_SIZE; i++) {
+            sb.append('x');
+        }
+        assertFalse(outbox.append("foo", 4000, sb.toString()));
+        assertEquals(2, outbox.size());
+
+        outbox.close();
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+
+        ObservationOutbox outbox = new ObservationOutbox(f, 4);
+        outbox.append("foo", 1000, "&tempf=1");
+        outbox.append("foo", 2000, "&tempf=2");
+        outbox.remove(0);
+        outbox.close();
+
+        outbox = new ObservationOutbox(f, 4);
+        assertEquals(1, outbox.size());
+        assertEquals(2000, outbox.peek().getObservedAt());
+        assertEquals("&tempf=2", outbox.peek().getParams());
+        outbox.close();
+
+        // a capacity change discards the existing contents
+        outbox = new ObservationOutbox(f, 8);
+        assertEquals(0, outbox.size());
+        outbox.close();
+    }
+}
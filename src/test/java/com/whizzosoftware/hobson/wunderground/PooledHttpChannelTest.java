@@ -0,0 +1,187 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.plugin.http.HttpRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PooledHttpChannelTest {
+    private StandInServer server;
+    private ResultListener listener;
+    private PooledHttpChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        server.start();
+        listener = new ResultListener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (channel != null) {
+            channel.shutdown();
+        }
+        server.stop();
+    }
+
+    @Test
+    public void testConnectionReuse() throws Exception {
+        channel = new PooledHttpChannel(listener, 2, 60000, 60000, 5000);
+        for (int i=0; i < 5; i++) {
+            channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, i);
+            Result r = listener.take();
+            assertEquals(i, r.context);
+            assertEquals(200, r.statusCode);
+            assertEquals(StandInServer.SUCCESS_BODY, r.body);
+        }
+        assertEquals(1, channel.getPoolMisses());
+        assertEquals(4, channel.getPoolHits());
+        assertEquals(1, channel.getDnsMisses());
+        assertEquals(0, channel.getDnsHits());
+        assertEquals(5, server.getStationRequestCount("foo"));
+        assertEquals("ID=foo&PASSWORD=bar&tempf=72.5", server.getLastQuery("foo"));
+    }
+
+    @Test
+    public void testDnsTtl() throws Exception {
+        channel = new PooledHttpChannel(listener, 0, 60000, 0, 5000);
+        for (int i=0; i < 3; i++) {
+            channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, i);
+            assertEquals(200, listener.take().statusCode);
+        }
+        // nothing is pooled and every connection needs a lookup
+        assertEquals(3, channel.getPoolMisses());
+        assertEquals(3, channel.getDnsMisses());
+
+        channel.shutdown();
+        channel = new PooledHttpChannel(listener, 0, 60000, 60000, 5000);
+        for (int i=0; i < 3; i++) {
+            channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, i);
+            assertEquals(200, listener.take().statusCode);
+        }
+        assertEquals(3, channel.getPoolMisses());
+        assertEquals(1, channel.getDnsMisses());
+        assertEquals(2, channel.getDnsHits());
+    }
+
+    @Test
+    public void testChunkedAndErrorResponses() throws Exception {
+        channel = new PooledHttpChannel(listener, 2, 60000, 60000, 5000);
+        server.setChunked(true);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        Result r = listener.take();
+        assertEquals(200, r.statusCode);
+        assertEquals(StandInServer.SUCCESS_BODY, r.body);
+
+        server.setChunked(false);
+        server.setRejectedId("foo");
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        assertEquals(StandInServer.INVALID_PASSWORD_BODY, listener.take().body);
+
+        server.setErrorRate(1);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        assertEquals(500, listener.take().statusCode);
+        assertEquals(1, channel.getPoolMisses());
+        assertEquals(2, channel.getPoolHits());
+    }
+
+    @Test
+    public void testClosedConnectionIsRetried() throws Exception {
+        channel = new PooledHttpChannel(listener, 2, 60000, 60000, 5000);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        assertEquals(200, listener.take().statusCode);
+
+        // the pooled connection is closed without a response, then so is the new one
+        server.setResetRate(1);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, "ctx");
+        Result r = listener.take();
+        assertEquals("ctx", r.context);
+        assertNotNull(r.failure);
+        assertEquals(1, channel.getStaleConnections());
+        assertEquals(2, channel.getPoolMisses());
+        assertEquals(2, server.getResetCount());
+
+        // a new connection is made once the server recovers
+        server.setResetRate(0);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        assertEquals(200, listener.take().statusCode);
+        assertEquals(3, channel.getPoolMisses());
+    }
+
+    @Test
+    public void testOversizedBodyFails() throws Exception {
+        channel = new PooledHttpChannel(listener, 2, 60000, 60000, 5000);
+        server.setPadding(PooledHttpChannel.MAX_BODY_BYTES);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, "ctx");
+        Result r = listener.take();
+        assertEquals("ctx", r.context);
+        assertNotNull(r.failure);
+
+        server.setChunked(true);
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, "ctx");
+        assertNotNull(listener.take().failure);
+
+        // the failed connections aren't reused
+        server.setChunked(false);
+        server.setPadding(PooledHttpChannel.MAX_BODY_BYTES - StandInServer.SUCCESS_BODY.length());
+        channel.sendHttpRequest(createURI("foo", "bar"), HttpRequest.Method.GET, null, null);
+        assertEquals(200, listener.take().statusCode);
+        assertEquals(3, channel.getPoolMisses());
+        assertEquals(0, channel.getPoolHits());
+    }
+
+    private URI createURI(String id, String password) throws Exception {
+        return new URI(server.getUpdateUrl() + "?ID=" + id + "&PASSWORD=" + password + "&tempf=72.5");
+    }
+
+    private static class Result {
+        Object context;
+        int statusCode;
+        String body;
+        Throwable failure;
+    }
+
+    private static class ResultListener implements PooledHttpChannel.Listener {
+        private final BlockingQueue<Result> results = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onHttpResult(int statusCode, ResponseBody body, Object context) {
+            Result r = new Result();
+            r.context = context;
+            r.statusCode = statusCode;
+            r.body = body.toString();
+            results.add(r);
+        }
+
+        @Override
+        public void onHttpRequestFailure(Throwable cause, Object context) {
+            Result r = new Result();
+            r.context = context;
+            r.failure = cause;
+            results.add(r);
+        }
+
+        Result take() throws InterruptedException {
+            Result r = results.poll(10, TimeUnit.SECONDS);
+            assertNotNull(r);
+            return r;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RapidFireSchedulerTest {
+    @Test
+    public void testFlushDelay() {
+        final List<Station> flushed = new ArrayList<>();
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        RapidFireScheduler s = new RapidFireScheduler(executor, 1000, 5000, new RapidFireScheduler.Listener() {
+            @Override
+            public boolean onRapidFireFlush(Station station, long now) {
+                flushed.add(station);
+                return true;
+            }
+        });
+
+        try {
+            Station station = new Station();
+
+            // a station that has never been sent only waits for the coalescing window
+            assertEquals(1000, s.getFlushDelay(station, 100000));
+
+            // a recently sent station waits out the remainder of its minimum interval
+            s.flush(station, 100000);
+            assertEquals(1, flushed.size());
+            assertEquals(100000, station.getLastRapidFireSend());
+            assertEquals(4000, s.getFlushDelay(station, 101000));
+            assertEquals(1000, s.getFlushDelay(station, 104500));
+            assertEquals(1000, s.getFlushDelay(station, 110000));
+
+            // only the first change schedules a flush
+            assertTrue(station.markRapidFireDirty());
+            assertFalse(station.markRapidFireDirty());
+            s.flush(station, 110000);
+            assertTrue(station.markRapidFireDirty());
+        } finally {
+            s.shutdown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedFlushIsRescheduled() throws Exception {
+        final BlockingQueue<Long> flushes = new LinkedBlockingQueue<>();
+        final AtomicBoolean claimed = new AtomicBoolean(true);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        RapidFireScheduler s = new RapidFireScheduler(executor, 10, 0, new RapidFireScheduler.Listener() {
+            @Override
+            public boolean onRapidFireFlush(Station station, long now) {
+                flushes.add(now);
+                // the first flush loses the station to another thread
+                return !claimed.getAndSet(false);
+            }
+        });
+
+        try {
+            Station station = new Station();
+            s.onChange(station, System.currentTimeMillis());
+            assertNotNull(flushes.poll(5, TimeUnit.SECONDS));
+
+            // the change wasn't uploaded so another flush is scheduled without a new change
+            assertNotNull(flushes.poll(5, TimeUnit.SECONDS));
+            assertNull(flushes.poll(100, TimeUnit.MILLISECONDS));
+            assertTrue(station.markRapidFireDirty());
+        } finally {
+            s.shutdown();
+            executor.shutdownNow();
+        }
+    }
+}
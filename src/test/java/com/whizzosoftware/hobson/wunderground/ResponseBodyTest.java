@@ -0,0 +1,83 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+public class ResponseBodyTest {
+    @Test
+    public void testClassifyBytes() throws Exception {
+        ResponseBody body = new ResponseBody();
+        read(body, "success\n");
+        assertEquals(UploadOutcome.SUCCESS, UploadOutcome.classify(200, body));
+
+        read(body, "INVALIDPASSWORDID|Password or key and/or id are incorrect");
+        assertEquals(UploadOutcome.AUTH_ERROR, UploadOutcome.classify(200, body));
+
+        read(body, "succes");
+        assertEquals(UploadOutcome.REJECTED, UploadOutcome.classify(200, body));
+
+        read(body, "");
+        assertEquals(UploadOutcome.REJECTED, UploadOutcome.classify(200, body));
+        assertEquals(UploadOutcome.RATE_LIMITED, UploadOutcome.classify(429, body));
+
+        Uploader u = new PwsWeatherUploader();
+        read(body, "<html>Data Logged and posted in checkdata</html>");
+        assertEquals(UploadOutcome.SUCCESS, u.classify(200, body));
+        read(body, "<html>ERROR: Not a vailid Station ID</html>");
+        assertEquals(UploadOutcome.AUTH_ERROR, u.classify(200, body));
+        read(body, "<html>ERROR: Date out of range</html>");
+        assertEquals(UploadOutcome.REJECTED, u.classify(200, body));
+    }
+
+    @Test
+    public void testMatching() throws Exception {
+        ResponseBody body = new ResponseBody();
+        read(body, "caf\u00e9 ERROR");
+        assertEquals("caf\u00e9 ERROR", body.toString());
+        assertEquals(11, body.length());
+        assertTrue(body.startsWith("caf"));
+        assertFalse(body.startsWith("cafe"));
+        assertEquals(6, body.indexOf("ERROR", 0));
+        assertEquals(6, body.indexOf("ERROR", 6));
+        assertEquals(-1, body.indexOf("ERROR", 7));
+        assertEquals(-1, body.indexOf("ERRORS", 0));
+
+        ResponseBody s = new ResponseBody("caf\u00e9 ERROR");
+        assertTrue(s.startsWith("caf"));
+        assertEquals(5, s.indexOf("ERROR", 0));
+    }
+
+    @Test
+    public void testGrowAndClear() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i < 100000; i++) {
+            sb.append((char)('a' + (i % 26)));
+        }
+        ResponseBody body = new ResponseBody();
+        read(body, sb.toString());
+        assertEquals(sb.toString(), body.toString());
+
+        read(body, "success");
+        assertEquals("success", body.toString());
+        assertTrue(body.startsWith("success"));
+    }
+
+    private void read(ResponseBody body, String s) throws Exception {
+        body.clear();
+        InputStream in = new ByteArrayInputStream(s.getBytes("UTF8"));
+        while (body.append(in, Integer.MAX_VALUE) > -1) {}
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+    @Test
+    public void testShouldRetry() {
+        RetryPolicy rp = new RetryPolicy(2, 1000, 10000);
+        assertTrue(rp.shouldRetry(UploadOutcome.TRANSPORT_ERROR, 0));
+        assertTrue(rp.shouldRetry(UploadOutcome.SERVER_ERROR, 1));
+        assertFalse(rp.shouldRetry(UploadOutcome.SERVER_ERROR, 2));
+        assertTrue(rp.shouldRetry(UploadOutcome.RATE_LIMITED, 0));
+        assertFalse(rp.shouldRetry(UploadOutcome.AUTH_ERROR, 0));
+        assertFalse(rp.shouldRetry(UploadOutcome.REJECTED, 0));
+    }
+
+    @Test
+    public void testDelay() {
+        RetryPolicy rp = new RetryPolicy(10, 1000, 10000);
+        for (int i=0; i < 100; i++) {
+            long d = rp.getDelay(UploadOutcome.TRANSPORT_ERROR, 0);
+            assertTrue(d >= 500 && d <= 1000);
+            d = rp.getDelay(UploadOutcome.TRANSPORT_ERROR, 2);
+            assertTrue(d >= 2000 && d <= 4000);
+            d = rp.getDelay(UploadOutcome.RATE_LIMITED, 2);
+            assertTrue(d >= 4000 && d <= 8000);
+            d = rp.getDelay(UploadOutcome.TRANSPORT_ERROR, 8);
+            assertTrue(d >= 5000 && d <= 10000);
+        }
+    }
+
+    @Test
+    public void testClassify() {
+        assertEquals(UploadOutcome.SUCCESS, UploadOutcome.classify(200, new ResponseBody("success\n")));
+        assertEquals(UploadOutcome.AUTH_ERROR, UploadOutcome.classify(200, new ResponseBody("INVALIDPASSWORDID|Password or key and/or id are incorrect")));
+        assertEquals(UploadOutcome.REJECTED, UploadOutcome.classify(200, null));
+        assertEquals(UploadOutcome.AUTH_ERROR, UploadOutcome.classify(401, null));
+        assertEquals(UploadOutcome.RATE_LIMITED, UploadOutcome.classify(429, null));
+        assertEquals(UploadOutcome.SERVER_ERROR, UploadOutcome.classify(502, new ResponseBody("bad gateway")));
+        assertEquals(UploadOutcome.REJECTED, UploadOutcome.classify(404, new ResponseBody("not found")));
+    }
+}
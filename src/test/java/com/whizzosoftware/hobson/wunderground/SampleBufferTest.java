@@ -0,0 +1,176 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class SampleBufferTest {
+    @Test
+    public void testEmpty() {
+        SampleBuffer sb = new SampleBuffer(8);
+        assertTrue(Double.isNaN(sb.getMax(0)));
+        assertTrue(Double.isNaN(sb.getMean(0)));
+        assertTrue(Double.isNaN(sb.getVectorMeanDegrees(0)));
+        assertTrue(Double.isNaN(sb.getAccumulation(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SampleBuffer(10);
+    }
+
+    @Test
+    public void testMaxAndMean() {
+        SampleBuffer sb = new SampleBuffer(8);
+        sb.add(100, 4);
+        sb.add(200, 12);
+        sb.add(300, 8);
+        assertEquals(12, sb.getMax(0), 0);
+        assertEquals(8, sb.getMean(0), 0);
+        assertEquals(10, sb.getMean(200), 0);
+        assertEquals(8, sb.getMax(250), 0);
+        assertTrue(Double.isNaN(sb.getMax(400)));
+    }
+
+    @Test
+    public void testOverwrite() {
+        SampleBuffer sb = new SampleBuffer(4);
+        for (int i=0; i < 10; i++) {
+            sb.add(i, i);
+        }
+        // only the last 4 samples are retained
+        assertEquals(7.5, sb.getMean(0), 0);
+        assertEquals(9, sb.getMax(0), 0);
+    }
+
+    @Test
+    public void testVectorMean() {
+        SampleBuffer sb = new SampleBuffer(8);
+        sb.add(100, 350);
+        sb.add(200, 10);
+        assertEquals(0, sb.getVectorMeanDegrees(0) % 360, 0.0001);
+
+        sb = new SampleBuffer(8);
+        sb.add(100, 80);
+        sb.add(200, 100);
+        assertEquals(90, sb.getVectorMeanDegrees(0), 0.0001);
+
+        sb = new SampleBuffer(8);
+        sb.add(100, 90);
+        sb.add(200, 270);
+        assertTrue(Double.isNaN(sb.getVectorMeanDegrees(0)));
+    }
+
+    @Test
+    public void testAccumulation() {
+        SampleBuffer sb = new SampleBuffer(8);
+        sb.add(100, 0.5);
+        sb.add(200, 0.75);
+        sb.add(300, 1.0);
+        assertEquals(0.5, sb.getAccumulation(100), 0.0001);
+
+        // only the part of the interval straddling the start of the window counts
+        assertEquals(0.375, sb.getAccumulation(150), 0.0001);
+
+        // a reset (e.g. at midnight) counts the new total in full
+        sb.add(400, 0.25);
+        assertEquals(0.625, sb.getAccumulation(150), 0.0001);
+
+        // a single sample in the window accumulates nothing without an earlier baseline
+        sb = new SampleBuffer(8);
+        sb.add(100, 0.5);
+        assertEquals(0, sb.getAccumulation(0), 0);
+    }
+
+    @Test
+    public void testHourOfRain() {
+        // a station's rain buffer covers a full hour of samples at a 2 second reporting interval
+        SampleBuffer sb = new Station().getSamples(WeatherVariable.RAIN_DAY);
+        long start = 1433160000000L;
+        double total = 0;
+        for (long t = start; t <= start + 5400000; t += 2000) {
+            sb.add(t, total);
+            total += 0.001;
+        }
+        long now = start + 5400000;
+        assertEquals(1.8, sb.getAccumulation(now - 3600000), 0.0001);
+
+        // including when the window starts part way between samples
+        assertEquals(1.7995, sb.getAccumulation(now - 3599000), 0.0001);
+
+        assertEquals(1024, Station.getSampleCapacity(600000));
+        assertEquals(4096, Station.getSampleCapacity(3600000));
+        assertEquals(128, Station.getSampleCapacity(120000));
+    }
+
+    @Test
+    public void testConcurrentAdd() throws Exception {
+        final SampleBuffer sb = new SampleBuffer(4096);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int i=0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ignored) {}
+                    for (int j=0; j < 1000; j++) {
+                        sb.add(j, 2);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(2, sb.getMean(0), 0);
+        assertEquals(2, sb.getMax(0), 0);
+    }
+
+    @Test
+    public void testConcurrentWrap() throws Exception {
+        // writers constantly wrap onto the same two slots; each writes samples whose value equals their time
+        final SampleBuffer sb = new SampleBuffer(2);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i=0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ignored) {}
+                    for (int j=0; j < 100000; j++) {
+                        sb.add(n, n);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        // a torn sample would pair a time with another writer's value
+        for (int i=0; i < threads.length; i++) {
+            double mean = sb.getMean(i);
+            assertTrue(Double.isNaN(mean) || mean >= i);
+        }
+        assertFalse(Double.isNaN(sb.getMax(0)));
+    }
+}
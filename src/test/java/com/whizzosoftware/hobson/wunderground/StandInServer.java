@@ -0,0 +1,261 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local stand-in for the Weather Underground update service. It accepts updateweatherstation.php requests and
+ * answers the way the real service does ("success", or an INVALIDPASSWORDID body for unknown credentials), with
+ * configurable latency, server error rate and connection reset rate. A fixed number of requests can also be made to
+ * fail before the server starts answering normally, which lets retry tests fail deterministically.
+ */
+public class StandInServer {
+    static final String PATH = "/weatherstation/updateweatherstation.php";
+    static final String SUCCESS_BODY = "success\n";
+    static final String INVALID_PASSWORD_BODY = "INVALIDPASSWORDID|Password and/or id are incorrect\n";
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private volatile long minLatencyMs;
+    private volatile long maxLatencyMs;
+    private volatile double errorRate;
+    private volatile double resetRate;
+    private volatile String rejectedId;
+    private volatile boolean chunked;
+    private volatile int padding;
+    private final AtomicInteger failFirst = new AtomicInteger();
+    private final AtomicInteger resetFirst = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicInteger errorCount = new AtomicInteger();
+    private final AtomicInteger resetCount = new AtomicInteger();
+    private final ConcurrentMap<String,AtomicInteger> stationCounts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,String> lastQueries = new ConcurrentHashMap<>();
+
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                onRequest(exchange);
+            }
+        });
+        server.start();
+    }
+
+    void stop() throws InterruptedException {
+        server.stop(0);
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    String getUpdateUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Sets the range of time the server waits before responding.
+     *
+     * @param minLatencyMs the minimum latency
+     * @param maxLatencyMs the maximum latency
+     */
+    void setLatency(long minLatencyMs, long maxLatencyMs) {
+        this.minLatencyMs = minLatencyMs;
+        this.maxLatencyMs = Math.max(minLatencyMs, maxLatencyMs);
+    }
+
+    /**
+     * Sets the fraction of requests answered with a 500 error.
+     *
+     * @param errorRate the error rate (0-1)
+     */
+    void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the fraction of requests whose connection is closed without any response.
+     *
+     * @param resetRate the reset rate (0-1)
+     */
+    void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    /**
+     * Sets a number of upcoming requests that are answered with a 500 error regardless of the error rate.
+     *
+     * @param count the number of requests
+     */
+    void setFailFirst(int count) {
+        failFirst.set(count);
+    }
+
+    /**
+     * Sets a number of upcoming requests whose connection is closed without any response regardless of the reset
+     * rate.
+     *
+     * @param count the number of requests
+     */
+    void setResetFirst(int count) {
+        resetFirst.set(count);
+    }
+
+    /**
+     * Sets a PWS ID whose requests are rejected as having an invalid password.
+     *
+     * @param rejectedId the PWS ID
+     */
+    void setRejectedId(String rejectedId) {
+        this.rejectedId = rejectedId;
+    }
+
+    /**
+     * Sets whether responses are sent with chunked transfer encoding rather than a content length.
+     *
+     * @param chunked whether to use chunked encoding
+     */
+    void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Sets a number of bytes of padding appended to every response body.
+     *
+     * @param padding the number of bytes
+     */
+    void setPadding(int padding) {
+        this.padding = padding;
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    int getSuccessCount() {
+        return successCount.get();
+    }
+
+    int getErrorCount() {
+        return errorCount.get();
+    }
+
+    int getResetCount() {
+        return resetCount.get();
+    }
+
+    int getStationCount() {
+        return stationCounts.size();
+    }
+
+    int getStationRequestCount(String pwsId) {
+        AtomicInteger i = stationCounts.get(pwsId);
+        return (i != null) ? i.get() : 0;
+    }
+
+    String getLastQuery(String pwsId) {
+        return lastQueries.get(pwsId);
+    }
+
+    private void onRequest(HttpExchange exchange) throws IOException {
+        try {
+            requestCount.incrementAndGet();
+            String query = exchange.getRequestURI().getRawQuery();
+            String id = getParameter(query, "ID");
+
+            long latency = (maxLatencyMs > minLatencyMs) ? ThreadLocalRandom.current().nextLong(minLatencyMs, maxLatencyMs + 1) : minLatencyMs;
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+
+            double r = ThreadLocalRandom.current().nextDouble();
+            if (takeOne(resetFirst) || r < resetRate) {
+                resetCount.incrementAndGet();
+                exchange.close();
+            } else if (takeOne(failFirst) || r < resetRate + errorRate) {
+                errorCount.incrementAndGet();
+                respond(exchange, 500, "Internal Server Error\n");
+            } else if (id == null || getParameter(query, "PASSWORD") == null || id.equals(rejectedId)) {
+                respond(exchange, 200, INVALID_PASSWORD_BODY);
+            } else {
+                AtomicInteger count = stationCounts.get(id);
+                if (count == null) {
+                    AtomicInteger c = new AtomicInteger();
+                    count = stationCounts.putIfAbsent(id, c);
+                    if (count == null) {
+                        count = c;
+                    }
+                }
+                count.incrementAndGet();
+                lastQueries.put(id, query);
+                successCount.incrementAndGet();
+                respond(exchange, 200, SUCCESS_BODY);
+            }
+        } catch (InterruptedException e) {
+            exchange.close();
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] b = body.getBytes("UTF8");
+        if (padding > 0) {
+            byte[] p = new byte[b.length + padding];
+            System.arraycopy(b, 0, p, 0, b.length);
+            Arrays.fill(p, b.length, p.length, (byte)' ');
+            b = p;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/html");
+        exchange.sendResponseHeaders(status, chunked ? 0 : b.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    private boolean takeOne(AtomicInteger remaining) {
+        int n;
+        do {
+            n = remaining.get();
+            if (n <= 0) {
+                return false;
+            }
+        } while (!remaining.compareAndSet(n, n - 1));
+        return true;
+    }
+
+    private String getParameter(String query, String name) {
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int ix = pair.indexOf('=');
+                if (ix > 0 && pair.substring(0, ix).equals(name)) {
+                    return pair.substring(ix + 1);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.device.MockDeviceManager;
+import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
+import com.whizzosoftware.hobson.api.event.MockEventManager;
+import com.whizzosoftware.hobson.api.plugin.MockHobsonPlugin;
+import com.whizzosoftware.hobson.api.variable.DeviceProxyVariable;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.api.variable.VariableMask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * End-to-end tests that send real HTTP requests from the plugin to a local StandInServer.
+ */
+public class StandInServerTest {
+    private StandInServer server;
+    private UrlConnectionHttpChannel channel;
+    private MockDeviceProxy wsDevice;
+    private WeatherUndergroundPlugin plugin;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StandInServer();
+        server.start();
+
+        MockDeviceManager dm = new MockDeviceManager();
+        MockEventManager em = new MockEventManager();
+        channel = new UrlConnectionHttpChannel(4, 5000);
+
+        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin.setDeviceManager(dm);
+        wsPlugin.setEventManager(em);
+        wsDevice = new MockDeviceProxy(wsPlugin, "device1", DeviceType.WEATHER_STATION);
+        dm.publishDevice(wsDevice, null, null);
+
+        plugin = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        channel.setPlugin(plugin);
+        plugin.setDeviceManager(dm);
+        plugin.setEventManager(em);
+        plugin.setDeviceContext(wsDevice.getContext());
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setUpdateUrls(server.getUpdateUrl(), server.getUpdateUrl());
+        plugin.setRetryPolicy(new RetryPolicy(3, 10, 10));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        plugin.onShutdown();
+        channel.shutdown();
+        server.stop();
+    }
+
+    @Test
+    public void testSuccess() throws Exception {
+        long now = System.currentTimeMillis();
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return plugin.getMetrics().getSuccessCount() == 1;
+            }
+        }));
+        assertEquals("ID=foo&PASSWORD=bar&dateutc=now&tempf=72.5", server.getLastQuery("foo"));
+        assertFalse(plugin.hasPendingRequest());
+    }
+
+    @Test
+    public void testServerErrorIsRetried() throws Exception {
+        long now = System.currentTimeMillis();
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        server.setFailFirst(2);
+        plugin.onRefresh(now);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return plugin.getMetrics().getSuccessCount() == 1;
+            }
+        }));
+        assertEquals(2, server.getErrorCount());
+        assertEquals(2, plugin.getMetrics().getFailureCount());
+        assertEquals(2, plugin.getMetrics().getRetryCount());
+        assertEquals(1, server.getStationRequestCount("foo"));
+    }
+
+    @Test
+    public void testConnectionResetIsRetried() throws Exception {
+        long now = System.currentTimeMillis();
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        server.setResetFirst(2);
+        plugin.onRefresh(now);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return plugin.getMetrics().getSuccessCount() == 1;
+            }
+        }));
+        assertEquals(2, server.getResetCount());
+        assertEquals(1, server.getStationRequestCount("foo"));
+    }
+
+    @Test
+    public void testInvalidPassword() throws Exception {
+        long now = System.currentTimeMillis();
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        server.setRejectedId("foo");
+        plugin.onRefresh(now);
+        assertTrue(waitFor(new Condition() {
+            public boolean isMet() {
+                return plugin.getMetrics().getFailureCount() == 1;
+            }
+        }));
+        assertEquals(0, plugin.getMetrics().getRetryCount());
+
+        // further refreshes are bypassed
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 75.0, now + 1000);
+        plugin.onRefresh(now + 1000);
+        Thread.sleep(100);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void testPersistentConnections() throws Exception {
+        plugin.setPersistentConnections(true);
+        long now = System.currentTimeMillis();
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+        for (int i=0; i < 3; i++) {
+            final int count = i + 1;
+            wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.5 + i, now + i * 1000);
+            plugin.onRefresh(now + i * 1000);
+            assertTrue(waitFor(new Condition() {
+                public boolean isMet() {
+                    return plugin.getMetrics().getSuccessCount() == count;
+                }
+            }));
+        }
+        assertEquals("ID=foo&PASSWORD=bar&dateutc=now&tempf=74.5", server.getLastQuery("foo"));
+        PooledHttpChannel pool = plugin.getPooledHttpChannel();
+        assertEquals(1, pool.getPoolMisses());
+        assertEquals(2, pool.getPoolHits());
+        assertEquals(0, channel.getSortedLatencies().length);
+    }
+
+    @Test
+    public void testLoadGenerator() throws Exception {
+        server.setLatency(0, 5);
+        LoadGenerator.Report report = new LoadGenerator(server, 200, 16).run(1000);
+        assertTrue(report.rounds > 0);
+        assertEquals(200, server.getStationCount());
+        assertEquals(report.rounds * 200L, report.successCount);
+        assertEquals(0, report.failureCount);
+        assertTrue(report.getUploadsPerSecond() > 0);
+        assertTrue(report.getLatencyMs(99) >= report.getLatencyMs(50));
+    }
+
+    private boolean waitFor(Condition c) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!c.isMet() && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        return c.isMet();
+    }
+
+    private interface Condition {
+        boolean isMet();
+    }
+}
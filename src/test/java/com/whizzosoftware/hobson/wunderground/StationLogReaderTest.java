@@ -0,0 +1,98 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+public class StationLogReaderTest {
+    @Test
+    public void testCsv() throws Exception {
+        File f = createLog(
+            "time,tempf,humidity,windGustMph,comment\n" +
+            "1431000000,72.5,40,,\"a, b\"\n" +
+            "\n" +
+            "2015-05-07 12:05:00,,41,12,\n" +
+            "bogus,73.5,42,,\n" +
+            "1431000600000,74.25,,,\r\n"
+        );
+
+        StationLogReader r = new StationLogReader(f, 0);
+        StationLogReader.Row row = r.next();
+        assertEquals(1431000000000L, row.getObservedAt());
+        assertEquals("&tempf=72.5&humidity=40", row.getParams());
+        long offset = row.getEndOffset();
+        assertEquals(offset, r.getOffset());
+
+        row = r.next();
+        assertEquals(1431000300000L, row.getObservedAt());
+        assertEquals("&humidity=41&windgustmph=12", row.getParams());
+
+        // rows without a valid time are skipped
+        row = r.next();
+        assertEquals(1431000600000L, row.getObservedAt());
+        assertEquals("&tempf=74.3", row.getParams());
+        assertEquals(f.length(), row.getEndOffset());
+        assertNull(r.next());
+        assertEquals(4, r.getRowCount());
+        assertEquals(1, r.getSkippedCount());
+        r.close();
+
+        // reading can be resumed after the first row
+        r = new StationLogReader(f, offset);
+        assertEquals(1431000300000L, r.next().getObservedAt());
+        r.close();
+    }
+
+    @Test
+    public void testJsonLines() throws Exception {
+        File f = createLog(
+            "{\"timestamp\": 1431000000, \"tempf\": 72.5, \"windspeedmph\": 3, \"station\": \"x\"}\n" +
+            "{\"timestamp\": \"2015-05-07T12:05:00Z\", \"baromin\": 30.012, \"tempf\": null}\n" +
+            "{\"timestamp\": 1431000600, \"nested\": {\"a\": 1}}\n" +
+            "{\"timestamp\": 1431000900, \"windGustMph\": 14}\n"
+        );
+
+        StationLogReader r = new StationLogReader(f, 0);
+        StationLogReader.Row row = r.next();
+        assertEquals(1431000000000L, row.getObservedAt());
+        assertEquals("&tempf=72.5&windspeedmph=3", row.getParams());
+        long offset = row.getEndOffset();
+
+        row = r.next();
+        assertEquals(1431000300000L, row.getObservedAt());
+        assertEquals("&baromin=30.012", row.getParams());
+
+        row = r.next();
+        assertEquals(1431000900000L, row.getObservedAt());
+        assertEquals("&windgustmph=14", row.getParams());
+        assertNull(r.next());
+        assertEquals(1, r.getSkippedCount());
+        r.close();
+
+        // resuming after the first row doesn't re-read it
+        r = new StationLogReader(f, offset);
+        assertEquals(1431000300000L, r.next().getObservedAt());
+        r.close();
+    }
+
+    static File createLog(String s) throws Exception {
+        File f = File.createTempFile("station", ".log");
+        f.deleteOnExit();
+        try (OutputStream os = new FileOutputStream(f)) {
+            os.write(s.getBytes("UTF8"));
+        }
+        return f;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UpdateUrlTemplateTest {
+    @Test
+    public void testBegin() throws Exception {
+        UpdateUrlTemplate t = new UpdateUrlTemplate("http://localhost/update.php", "foo", "b&r");
+        StringBuilder sb = new StringBuilder("garbage");
+        assertEquals("http://localhost/update.php?ID=foo&PASSWORD=b%26r&dateutc=now", t.begin(sb, "now").toString());
+        assertEquals("http://localhost/update.php?ID=foo&PASSWORD=b%26r&dateutc=now", t.begin(sb, "now").toString());
+    }
+
+    @Test
+    public void testAppendParameter() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        UpdateUrlTemplate.appendParameter(sb, "tempf", 72, 1);
+        UpdateUrlTemplate.appendParameter(sb, "baromin", 29.921, 3);
+        UpdateUrlTemplate.appendParameter(sb, "humidity", 45.0f, 1);
+        UpdateUrlTemplate.appendParameter(sb, "foo", "a b", 1);
+        assertEquals("&tempf=72&baromin=29.921&humidity=45&foo=a+b", sb.toString());
+    }
+
+    @Test
+    public void testAppendDecimal() {
+        assertEquals("72.5", decimal(72.5, 1));
+        assertEquals("41.2", decimal(41.2, 1));
+        assertEquals("72.6", decimal(72.55, 1));
+        assertEquals("30", decimal(29.9996, 3));
+        assertEquals("29.901", decimal(29.901, 3));
+        assertEquals("29.9", decimal(29.9001, 3));
+        assertEquals("0.05", decimal(0.05, 2));
+        assertEquals("-3.2", decimal(-3.2, 1));
+        assertEquals("0", decimal(-0.01, 1));
+        assertEquals("2.5", decimal(2.5, 3));
+        assertEquals("9", decimal(9.4, 0));
+    }
+
+    private String decimal(double d, int precision) {
+        StringBuilder sb = new StringBuilder();
+        UpdateUrlTemplate.appendDecimal(sb, d, precision);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+public class UploadMetricsTest {
+    @Test
+    public void testLatencyHistogram() {
+        UploadMetrics m = new UploadMetrics();
+        assertEquals(0, m.getLatencyPercentileMs(50));
+        assertEquals(0, m.getLatencyMeanMs());
+
+        for (int i=0; i < 90; i++) {
+            m.recordLatency(100);
+        }
+        for (int i=0; i < 9; i++) {
+            m.recordLatency(1000);
+        }
+        m.recordLatency(5000);
+
+        assertEquals(100, m.getLatencyCount());
+        assertEquals(5000, m.getLatencyMaxMs());
+        assertEquals(230, m.getLatencyMeanMs());
+        assertEquals(128, m.getLatencyPercentileMs(50));
+        assertEquals(1024, m.getLatencyPercentileMs(95));
+        assertEquals(1024, m.getLatencyPercentileMs(99));
+        assertEquals(5000, m.getLatencyPercentileMs(100));
+    }
+
+    @Test
+    public void testSnapshot() {
+        UploadMetrics m = new UploadMetrics();
+        m.onSent();
+        m.onSent();
+        m.onSent();
+        m.onSuppressed();
+        m.onSuccess();
+        m.onSuccess();
+        m.onFailure();
+        m.onSkippedPending();
+        m.onNoNewData();
+        m.onStaleVariable();
+        m.recordLatency(0);
+
+        Map<String,Long> s = m.getSnapshot();
+        assertEquals(3L, (long)s.get("uploads.sent"));
+        assertEquals(1L, (long)s.get("uploads.suppressed"));
+        assertEquals(2L, (long)s.get("uploads.success"));
+        assertEquals(1L, (long)s.get("uploads.failure"));
+        assertEquals(1L, (long)s.get("refresh.skippedPending"));
+        assertEquals(1L, (long)s.get("refresh.noNewData"));
+        assertEquals(1L, (long)s.get("variables.stale"));
+        assertEquals(1L, (long)s.get("latency.count"));
+        assertEquals(0L, (long)s.get("latency.p50Ms"));
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploadServiceTest {
+    @Test
+    public void testInFlightLimit() {
+        UploadService s = new UploadService(0, new WundergroundUploader(), new CircuitBreaker(5, 1000, 1000));
+        assertTrue(s.tryAcquireInFlight(2));
+        assertTrue(s.tryAcquireInFlight(2));
+        assertFalse(s.tryAcquireInFlight(2));
+        assertEquals(2, s.getInFlightCount());
+
+        s.releaseInFlight();
+        s.releaseInFlight();
+        assertEquals(0, s.getInFlightCount());
+
+        // a duplicate release doesn't free a slot that was never acquired
+        s.releaseInFlight();
+        assertEquals(0, s.getInFlightCount());
+        assertTrue(s.tryAcquireInFlight(2));
+        assertTrue(s.tryAcquireInFlight(2));
+        assertFalse(s.tryAcquireInFlight(2));
+    }
+}
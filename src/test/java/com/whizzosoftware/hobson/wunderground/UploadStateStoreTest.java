@@ -0,0 +1,68 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class UploadStateStoreTest {
+    @Test
+    public void testSaveAndRestore() throws Exception {
+        File f = File.createTempFile("state", ".properties");
+        f.deleteOnExit();
+
+        Station s1 = new Station(null, "foo", "bar");
+        s1.setLastVariableUpdate(WeatherVariable.OUTDOOR_TEMP, 1000);
+        s1.setLastSentValue(WeatherVariable.OUTDOOR_TEMP, 72.5);
+        s1.setLastUploadTime(2000);
+        Station s2 = new Station(null, "foo2", "bar2");
+
+        UploadStateStore store = new UploadStateStore(f);
+        assertTrue(store.save(Arrays.asList(s1, s2)));
+
+        // only stations that have uploaded something are restored
+        Station r1 = new Station(null, "foo", "bar");
+        Station r2 = new Station(null, "foo2", "bar2");
+        assertEquals(1, new UploadStateStore(f).restore(Arrays.asList(r1, r2)));
+        assertEquals(1000, r1.getLastVariableUpdate(WeatherVariable.OUTDOOR_TEMP));
+        assertEquals(72.5, r1.getLastSentValue(WeatherVariable.OUTDOOR_TEMP), 0);
+        assertEquals(2000, r1.getLastUploadTime());
+        assertEquals(Station.NO_UPDATE, r1.getLastVariableUpdate(WeatherVariable.DEW_POINT));
+        assertTrue(Double.isNaN(r1.getLastSentValue(WeatherVariable.DEW_POINT)));
+        assertEquals(Station.NO_UPDATE, r2.getLastUploadTime());
+    }
+
+    @Test
+    public void testSaveWhileRefreshing() throws Exception {
+        File f = File.createTempFile("state", ".properties");
+        f.deleteOnExit();
+
+        Station s = new Station(null, "foo", "bar");
+        s.setLastUploadTime(2000);
+        UploadStateStore store = new UploadStateStore(f);
+        assertTrue(s.beginRefresh());
+        assertFalse(store.save(Collections.singletonList(s)));
+        s.endRefresh();
+        assertTrue(store.save(Collections.singletonList(s)));
+    }
+
+    @Test
+    public void testMissingFile() throws Exception {
+        File f = File.createTempFile("state", ".properties");
+        assertTrue(f.delete());
+        Station s = new Station(null, "foo", "bar");
+        assertEquals(0, new UploadStateStore(f).restore(Collections.singletonList(s)));
+        assertEquals(Station.NO_UPDATE, s.getLastUploadTime());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class UploaderTest {
+    @Test
+    public void testWundergroundEncoding() throws Exception {
+        Uploader u = new WundergroundUploader("http://localhost/update", "http://localhost/rt");
+        assertEquals("http://localhost/rt?ID=foo&PASSWORD=b%26r&dateutc=now", u.createUrlTemplate("foo", "b&r", true).begin(new StringBuilder(), "now").toString());
+
+        StringBuilder sb = new StringBuilder();
+        u.appendSuffix(sb, true, 2500);
+        assertEquals("&realtime=1&rtfreq=2.5", sb.toString());
+        sb.setLength(0);
+        u.appendSuffix(sb, false, 2500);
+        assertEquals("", sb.toString());
+    }
+
+    @Test
+    public void testPwsWeatherClassify() {
+        Uploader u = new PwsWeatherUploader();
+        assertEquals(UploadOutcome.SUCCESS, u.classify(200, new ResponseBody("<html>Data Logged and posted in checkdata</html>")));
+        assertEquals(UploadOutcome.AUTH_ERROR, u.classify(200, new ResponseBody("ERROR: Not a vailid Station ID")));
+        assertEquals(UploadOutcome.AUTH_ERROR, u.classify(200, new ResponseBody("ERROR: Not a vailid Station ID or Password")));
+        assertEquals(UploadOutcome.REJECTED, u.classify(200, new ResponseBody("ERROR: Date out of range")));
+        assertEquals(UploadOutcome.SERVER_ERROR, u.classify(503, null));
+    }
+
+    @Test
+    public void testWowEncodingAndClassify() throws Exception {
+        Uploader u = new WowUploader("http://localhost/automaticreading");
+        assertFalse(u.supportsRealtime());
+        assertFalse(u.supportsDateNow());
+        assertEquals("http://localhost/automaticreading?siteid=123&siteAuthenticationKey=456&dateutc=x", u.createUrlTemplate("123", "456", false).begin(new StringBuilder(), "x").toString());
+
+        assertEquals(UploadOutcome.SUCCESS, u.classify(200, new ResponseBody("{}")));
+        assertEquals(UploadOutcome.SUCCESS, u.classify(204, null));
+        assertEquals(UploadOutcome.AUTH_ERROR, u.classify(403, new ResponseBody("{}")));
+        assertEquals(UploadOutcome.RATE_LIMITED, u.classify(429, null));
+        assertEquals(UploadOutcome.REJECTED, u.classify(400, new ResponseBody("bad request")));
+    }
+}
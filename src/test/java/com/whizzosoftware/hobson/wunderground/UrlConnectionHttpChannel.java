@@ -0,0 +1,129 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.plugin.http.AbstractHttpClientPlugin;
+import com.whizzosoftware.hobson.api.plugin.http.HttpRequest;
+import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HttpChannel that sends real requests with HttpURLConnection on a thread pool and delivers the results to a
+ * plugin's onHttpResponse()/onHttpRequestFailure() callbacks from those threads, the way the Hobson HTTP client
+ * delivers them from its event loop.
+ */
+public class UrlConnectionHttpChannel implements HttpChannel {
+    private final ExecutorService executor;
+    private final int timeoutMs;
+    private final List<Long> latencies = new ArrayList<>();
+    private volatile AbstractHttpClientPlugin plugin;
+
+    UrlConnectionHttpChannel(int threadCount, int timeoutMs) {
+        this.executor = Executors.newFixedThreadPool(threadCount);
+        this.timeoutMs = timeoutMs;
+    }
+
+    void setPlugin(AbstractHttpClientPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Returns the end-to-end latencies (from the request being handed to the channel until the plugin's callback
+     * has returned) recorded so far.
+     *
+     * @return a sorted array of latencies in microseconds
+     */
+    long[] getSortedLatencies() {
+        long[] a;
+        synchronized (latencies) {
+            a = new long[latencies.size()];
+            for (int i=0; i < a.length; i++) {
+                a[i] = latencies.get(i);
+            }
+        }
+        Arrays.sort(a);
+        return a;
+    }
+
+    void clearLatencies() {
+        synchronized (latencies) {
+            latencies.clear();
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void sendHttpRequest(final URI uri, final HttpRequest.Method method, final Map<String, String> headers, final Object context) {
+        final long start = System.nanoTime();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MockHttpResponse response = null;
+                IOException failure = null;
+                try {
+                    response = send(uri, method, headers);
+                } catch (IOException e) {
+                    failure = e;
+                }
+                if (response != null) {
+                    plugin.onHttpResponse(response, context);
+                } else {
+                    plugin.onHttpRequestFailure(failure, context);
+                }
+                long latency = (System.nanoTime() - start) / 1000;
+                synchronized (latencies) {
+                    latencies.add(latency);
+                }
+            }
+        });
+    }
+
+    private MockHttpResponse send(URI uri, HttpRequest.Method method, Map<String,String> headers) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)uri.toURL().openConnection();
+        conn.setRequestMethod(method.toString());
+        conn.setConnectTimeout(timeoutMs);
+        conn.setReadTimeout(timeoutMs);
+        if (headers != null) {
+            for (Map.Entry<String,String> e : headers.entrySet()) {
+                conn.setRequestProperty(e.getKey(), e.getValue());
+            }
+        }
+        int status = conn.getResponseCode();
+        InputStream is = (status >= 400) ? conn.getErrorStream() : conn.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (is != null) {
+            // the stream is read fully and closed so the connection can be reused
+            try (InputStream in = is) {
+                byte[] buf = new byte[1024];
+                int len;
+                while ((len = in.read(buf)) > -1) {
+                    body.write(buf, 0, len);
+                }
+            }
+        }
+        return new MockHttpResponse(status, body.toString("UTF8"));
+    }
+}
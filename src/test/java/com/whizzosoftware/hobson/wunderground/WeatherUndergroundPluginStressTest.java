@@ -0,0 +1,262 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.device.DeviceType;
+import com.whizzosoftware.hobson.api.device.MockDeviceManager;
+import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
+import com.whizzosoftware.hobson.api.event.MockEventManager;
+import com.whizzosoftware.hobson.api.plugin.MockHobsonPlugin;
+import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
+import com.whizzosoftware.hobson.api.variable.DeviceProxyVariable;
+import com.whizzosoftware.hobson.api.variable.DeviceVariableContext;
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import com.whizzosoftware.hobson.api.variable.VariableMask;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives refreshes and responses for many stations from many threads at once and checks that every upload is
+ * sent exactly once, completed exactly once and never exceeds the in-flight limits.
+ */
+public class WeatherUndergroundPluginStressTest {
+    private static final int STATION_COUNT = 16;
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+    private static final int UPLOAD_COUNT = 20000;
+    private static final long TIMEOUT_MS = 60000;
+
+    private MockHttpChannel channel;
+    private MockDeviceProxy[] devices;
+    private WeatherUndergroundPlugin plugin;
+    private AtomicLong readingTime;
+
+    @Before
+    public void setUp() {
+        long now = System.currentTimeMillis();
+        readingTime = new AtomicLong(now);
+        MockDeviceManager dm = new MockDeviceManager();
+        MockEventManager em = new MockEventManager();
+        channel = new MockHttpChannel();
+
+        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin.setDeviceManager(dm);
+        wsPlugin.setEventManager(em);
+
+        plugin = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        plugin.setDeviceManager(dm);
+        plugin.setEventManager(em);
+        plugin.setMaxConcurrentUploads(MAX_CONCURRENT_UPLOADS);
+        plugin.setRequestLimits(1, TIMEOUT_MS);
+        plugin.setMaxSilence(0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+        plugin.setCircuitBreaker(new CircuitBreaker(Integer.MAX_VALUE, 1, 1));
+
+        devices = new MockDeviceProxy[STATION_COUNT];
+        for (int i=0; i < STATION_COUNT; i++) {
+            devices[i] = new MockDeviceProxy(wsPlugin, "device" + i, DeviceType.WEATHER_STATION);
+            dm.publishDevice(devices[i], null, null);
+            devices[i].publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(devices[i].getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 70.0 + i, now));
+            if (i == 0) {
+                plugin.setDeviceContext(devices[i].getContext());
+                plugin.setPwsId("pws0");
+                plugin.setPwsPassword("password0");
+            } else {
+                plugin.addStation(new Station(devices[i].getContext(), "pws" + i, "password" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentRefreshAndResponse() throws Exception {
+        Result r = run(8, UPLOAD_COUNT, true);
+        assertEquals(0, r.violations);
+        assertEquals(0, r.duplicates);
+        assertQuiescent(r);
+
+        // a final change on every station is delivered
+        channel.clear();
+        for (MockDeviceProxy device : devices) {
+            device.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 99.5, readingTime.incrementAndGet());
+        }
+        Result last = run(4, STATION_COUNT, false);
+        assertQuiescent(last);
+        for (int i=0; i < STATION_COUNT; i++) {
+            boolean delivered = false;
+            for (int j=0; j < channel.getURICount() && !delivered; j++) {
+                String uri = channel.getURI(j).toASCIIString();
+                delivered = uri.contains("?ID=pws" + i + "&") && uri.endsWith("&tempf=99.5");
+            }
+            assertTrue("No update delivered for pws" + i, delivered);
+        }
+    }
+
+    @Test
+    public void testSingleAndMultipleThreads() throws Exception {
+        // the same workload is correct whether it's driven by one thread or several (throughput scaling is
+        // measured by ContentionBenchmark rather than asserted here)
+        int threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        for (int threadCount : new int[] {1, threads}) {
+            Result r = run(threadCount, UPLOAD_COUNT, true);
+            assertEquals(0, r.violations);
+            assertEquals(0, r.duplicates);
+            assertQuiescent(r);
+        }
+    }
+
+    private void assertQuiescent(Result r) {
+        UploadMetrics m = plugin.getMetrics();
+        assertEquals(0, plugin.getInFlightCount());
+        assertEquals(0, plugin.getQueuedRequestCount());
+        assertEquals(m.getSentCount(), m.getSuccessCount() + m.getFailureCount());
+        assertEquals(r.sent, r.responded);
+    }
+
+    /**
+     * Runs refresher and responder threads until a number of uploads have been sent, then lets all outstanding
+     * requests complete.
+     *
+     * @param threadCount the number of refresher threads (and responder threads)
+     * @param uploadCount the number of uploads to send
+     * @param newReadings whether refresher threads publish a new reading for a random station before each refresh
+     *
+     * @return the run result
+     */
+    private Result run(int threadCount, final int uploadCount, final boolean newReadings) throws Exception {
+        final BlockingQueue<Object> responses = new LinkedBlockingQueue<>();
+        final Set<Object> sent = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+        final AtomicInteger sentCount = new AtomicInteger();
+        final AtomicInteger respondedCount = new AtomicInteger();
+        final AtomicInteger violations = new AtomicInteger();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final AtomicBoolean refreshing = new AtomicBoolean(true);
+        final AtomicBoolean responding = new AtomicBoolean(true);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final MockHttpResponse success = new MockHttpResponse(200, "success");
+        final MockHttpResponse failure = new MockHttpResponse(500, "error");
+
+        channel.setListener(new MockHttpChannel.Listener() {
+            @Override
+            public void onSend(URI uri, Object context) {
+                UploadRequest request = (UploadRequest)context;
+                if (request.getDestination().getInFlightCount() > 1 || plugin.getInFlightCount() > MAX_CONCURRENT_UPLOADS) {
+                    violations.incrementAndGet();
+                }
+                synchronized (sent) {
+                    if (!sent.add(context)) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+                sentCount.incrementAndGet();
+                responses.add(context);
+            }
+        });
+
+        Thread[] refreshers = new Thread[threadCount];
+        Thread[] responders = new Thread[threadCount];
+        for (int i=0; i < threadCount; i++) {
+            refreshers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (refreshing.get() && sentCount.get() < uploadCount) {
+                            if (newReadings) {
+                                // readings are only uploaded once, so each refresh needs a newer one to send
+                                MockDeviceProxy device = devices[ThreadLocalRandom.current().nextInt(devices.length)];
+                                device.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 70.0, readingTime.incrementAndGet());
+                            }
+                            plugin.onRefresh(System.currentTimeMillis());
+                            Thread.yield();
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+            responders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (responding.get() || !responses.isEmpty()) {
+                            Object context = responses.poll(10, TimeUnit.MILLISECONDS);
+                            if (context != null) {
+                                int n = ThreadLocalRandom.current().nextInt(20);
+                                plugin.onHttpResponse(n == 0 ? failure : success, context);
+                                if (n == 1) {
+                                    // a late duplicate response must be ignored
+                                    plugin.onHttpResponse(success, context);
+                                }
+                                respondedCount.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            });
+            refreshers[i].start();
+            responders[i].start();
+        }
+
+        start.countDown();
+        for (Thread t : refreshers) {
+            t.join(TIMEOUT_MS);
+        }
+        refreshing.set(false);
+
+        // wait for everything in flight to complete
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((plugin.getInFlightCount() > 0 || plugin.getQueuedRequestCount() > 0 || !responses.isEmpty()) && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        responding.set(false);
+        for (Thread t : responders) {
+            t.join(TIMEOUT_MS);
+        }
+        channel.setListener(null);
+
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        return new Result(sentCount.get(), respondedCount.get(), violations.get(), duplicates.get());
+    }
+
+    private static class Result {
+        final int sent;
+        final int responded;
+        final int violations;
+        final int duplicates;
+
+        Result(int sent, int responded, int violations, int duplicates) {
+            this.sent = sent;
+            this.responded = responded;
+            this.violations = violations;
+            this.duplicates = duplicates;
+        }
+    }
+}
@@ -9,6 +9,7 @@
 */
 package com.whizzosoftware.hobson.wunderground;
 
+import com.whizzosoftware.hobson.api.device.DeviceContext;
 import com.whizzosoftware.hobson.api.device.DeviceType;
 import com.whizzosoftware.hobson.api.device.MockDeviceManager;
 import com.whizzosoftware.hobson.api.device.MockDeviceProxy;
@@ -18,21 +19,28 @@ import com.whizzosoftware.hobson.api.plugin.http.MockHttpResponse;
 import com.whizzosoftware.hobson.api.variable.*;
 import org.junit.Before;
 import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class WeatherUndergroundPluginTest {
     private MockHttpChannel channel;
+    private MockDeviceManager dm;
+    private MockHobsonPlugin wsPlugin;
     private MockDeviceProxy wsDevice;
     private WeatherUndergroundPlugin plugin;
 
     @Before
     public void setUp() {
-        MockDeviceManager dm = new MockDeviceManager();
+        dm = new MockDeviceManager();
         MockEventManager em = new MockEventManager();
         channel = new MockHttpChannel();
 
         // create weather station plugin / device
-        MockHobsonPlugin wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
+        wsPlugin = new MockHobsonPlugin("plugin1", "1.0", "Weather Station Plugin");
         wsPlugin.setDeviceManager(dm);
         wsPlugin.setEventManager(em);
         wsDevice = new MockDeviceProxy(wsPlugin, "device1", DeviceType.WEATHER_STATION);
@@ -83,6 +91,7 @@ public class WeatherUndergroundPluginTest {
         wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 450);
         plugin.onRefresh(now + 500);
         assertEquals(0, channel.getURICount());
+        assertEquals(2, plugin.getMetrics().getSkippedPendingCount());
 
         // clear pending request and update variable again
         plugin.clearPendingRequest();
@@ -127,6 +136,119 @@ public class WeatherUndergroundPluginTest {
         assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&baromin=5&dewptf=6&tempf=7&humidity=8&winddir=9&windspeedmph=10", channel.getURI(0).toASCIIString());
     }
 
+    @Test
+    public void testExtendedVariableUpdate() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+
+        wsDevice.publishVariables(
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 7, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.WIND_GUST_MPH), VariableMask.READ_ONLY, 21.25, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.RAIN_HOUR_IN), VariableMask.READ_ONLY, 0.125, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.RAIN_DAY_IN), VariableMask.READ_ONLY, 1.5, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.SOLAR_RADIATION_WM2), VariableMask.READ_ONLY, 512.4, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.UV_INDEX), VariableMask.READ_ONLY, 6, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.INDOOR_TEMP_F), VariableMask.READ_ONLY, 68.5, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.INDOOR_RELATIVE_HUMIDITY), VariableMask.READ_ONLY, 40, now)
+        );
+
+        plugin.onRefresh(now);
+
+        assertEquals(1, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&tempf=7&windgustmph=21.3&rainin=0.13&dailyrainin=1.5&solarradiation=512.4&UV=6&indoortempf=68.5&indoorhumidity=40", channel.getURI(0).toASCIIString());
+    }
+
+    @Test
+    public void testSampleAggregation() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+
+        DeviceVariableContext speed = DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.WIND_SPEED_MPH);
+        DeviceVariableContext dir = DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.WIND_DIRECTION_DEGREES);
+        DeviceVariableContext rain = DeviceVariableContext.create(wsDevice.getContext(), WeatherStationVariables.RAIN_DAY_IN);
+
+        // a gust more than 2 minutes ago only counts towards the gust
+        plugin.onVariableUpdate(speed, 20, now - 300000, now - 300000);
+        plugin.onVariableUpdate(speed, 4, now - 60000, now - 60000);
+        plugin.onVariableUpdate(speed, 8, now - 30000, now - 30000);
+        plugin.onVariableUpdate(dir, 350, now - 60000, now - 60000);
+        plugin.onVariableUpdate(dir, 20, now - 30000, now - 30000);
+        plugin.onVariableUpdate(rain, 0.1, now - 7200000, now - 7200000);
+        plugin.onVariableUpdate(rain, 0.3, now - 1800000, now - 1800000);
+        plugin.onVariableUpdate(rain, 0.35, now - 60000, now - 60000);
+
+        // variables from another device are ignored
+        plugin.onVariableUpdate(DeviceVariableContext.create(DeviceContext.createLocal("plugin1", "device2"), VariableConstants.WIND_SPEED_MPH), 99, now, now);
+
+        wsDevice.publishVariables(
+            new DeviceProxyVariable(speed, VariableMask.READ_ONLY, 8, now - 30000),
+            new DeviceProxyVariable(dir, VariableMask.READ_ONLY, 20, now - 30000)
+        );
+
+        plugin.onRefresh(now);
+
+        assertEquals(1, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&winddir=20&windspeedmph=8&windgustmph=20&windspdmph_avg2m=6&winddir_avg2m=5&rainin=0.12", channel.getURI(0).toASCIIString());
+    }
+
+    @Test
+    public void testDeadband() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setMaxSilence(900000);
+
+        wsDevice.publishVariables(
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now),
+            new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.BAROMETRIC_PRESSURE_INHG), VariableMask.READ_ONLY, 30.01, now)
+        );
+
+        // the first upload is always sent
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+
+        // changes within the deadbands are suppressed
+        channel.clear();
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.55, now + 100);
+        wsDevice.setVariableValue(VariableConstants.BAROMETRIC_PRESSURE_INHG, 30.015, now + 100);
+        plugin.onRefresh(now + 200);
+        assertEquals(0, channel.getURICount());
+        assertEquals(1, plugin.getMetrics().getSuppressedCount());
+
+        // a change to one variable that reaches its deadband sends all variables
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.6, now + 300);
+        plugin.onRefresh(now + 400);
+        assertEquals(1, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&baromin=30.015&tempf=72.6", channel.getURI(0).toASCIIString());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+
+        // a custom deadband applies from the next refresh
+        channel.clear();
+        plugin.setDeadband(WeatherVariable.OUTDOOR_TEMP, 0);
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.61, now + 500);
+        plugin.onRefresh(now + 600);
+        assertEquals(1, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+
+        // unchanged values are sent once the maximum silence has elapsed
+        channel.clear();
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.61, now + 700);
+        plugin.onRefresh(now + 800);
+        assertEquals(0, channel.getURICount());
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.61, now + 900000);
+        plugin.onRefresh(now + 600 + 900000);
+        assertEquals(1, channel.getURICount());
+
+        assertEquals(2, plugin.getMetrics().getSuppressedCount());
+        assertEquals(4, plugin.getMetrics().getSentCount());
+    }
+
     @Test
     public void testAppendVariableToURL() throws Exception {
         long now = System.currentTimeMillis();
@@ -146,6 +268,18 @@ public class WeatherUndergroundPluginTest {
         assertTrue(plugin.appendVariableToURL(wsDevice.getVariableState(VariableConstants.OUTDOOR_TEMP_F), url, now + 2));
         assertEquals("&tempf=32", url.toString());
 
+        // once uploaded, the same reading isn't appended again but an unchanged value with a newer timestamp is
+        Station station = new Station();
+        DeviceVariableState[] states = new DeviceVariableState[WeatherVariable.count()];
+        states[WeatherVariable.OUTDOOR_TEMP.ordinal()] = wsDevice.getVariableState(VariableConstants.OUTDOOR_TEMP_F);
+        station.onUpload(states, now + 2);
+        assertEquals(now + 1, station.getLastVariableUpdate(WeatherVariable.OUTDOOR_TEMP));
+        url.setLength(0);
+        assertFalse(plugin.appendVariableToURL(station, wsDevice.getVariableState(VariableConstants.OUTDOOR_TEMP_F), url, now + 3));
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 32, now + 4);
+        assertTrue(plugin.appendVariableToURL(station, wsDevice.getVariableState(VariableConstants.OUTDOOR_TEMP_F), url, now + 5));
+        assertEquals("&tempf=32", url.toString());
+
     }
 
     @Test
@@ -167,10 +301,632 @@ public class WeatherUndergroundPluginTest {
 
         plugin.onRefresh(now + 601000);
         assertEquals(1, channel.getURICount());
+        assertEquals(1, plugin.getMetrics().getSuccessCount());
+        assertEquals(1, plugin.getMetrics().getStaleVariableCount());
+        assertEquals(1, plugin.getMetrics().getNoNewDataCount());
 
         wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 42, now + 70000);
         plugin.onRefresh(now + 602000);
         assertEquals(2, channel.getURICount());
         assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&tempf=42", channel.getURI(1).toASCIIString());
     }
+
+    @Test
+    public void testMultipleStations() {
+        long now = System.currentTimeMillis();
+
+        MockDeviceProxy wsDevice2 = new MockDeviceProxy(wsPlugin, "device2", DeviceType.WEATHER_STATION);
+        dm.publishDevice(wsDevice2, null, null);
+        MockDeviceProxy wsDevice3 = new MockDeviceProxy(wsPlugin, "device3", DeviceType.WEATHER_STATION);
+        dm.publishDevice(wsDevice3, null, null);
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.addStation(new Station(wsDevice2.getContext(), "foo2", "bar2"));
+        plugin.addStation(new Station(wsDevice3.getContext(), "foo3", "bar3"));
+        plugin.setMaxConcurrentUploads(2);
+
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 70, now));
+        wsDevice2.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice2.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 71, now));
+        wsDevice3.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice3.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72, now));
+
+        // only two uploads should be in flight at once
+        plugin.onRefresh(now);
+        assertEquals(2, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&tempf=70", channel.getURI(0).toASCIIString());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo2&PASSWORD=bar2&dateutc=now&tempf=71", channel.getURI(1).toASCIIString());
+
+        // completing the second station's request should release the third
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(1));
+        assertTrue(plugin.hasPendingRequest());
+        assertEquals(3, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo3&PASSWORD=bar3&dateutc=now&tempf=72", channel.getURI(2).toASCIIString());
+
+        // a failure for the first station should only clear its own pending request
+        plugin.onHttpRequestFailure(new Exception(), channel.getContext(0));
+        assertFalse(plugin.hasPendingRequest());
+        assertEquals(3, channel.getURICount());
+    }
+
+    @Test
+    public void testAdditionalStationBindings() {
+        DeviceContext d2 = DeviceContext.createLocal("plugin1", "device2");
+        DeviceContext d3 = DeviceContext.createLocal("plugin1", "device3");
+        DeviceContext d4 = DeviceContext.createLocal("plugin1", "device4");
+
+        // devices are matched by ID regardless of order and passwords may contain commas, colons and spaces
+        plugin.processAdditionalStations(Arrays.asList(d4, d3, d2), "device2=foo2:b\\,a:r , device3 = foo3 : b\\\\az,,bogus");
+        List<Station> stations = plugin.getAdditionalStations();
+        assertEquals(2, stations.size());
+        assertEquals(d3, stations.get(0).getDeviceContext());
+        assertEquals("foo3", stations.get(0).getPwsId());
+        assertEquals(" b\\az", stations.get(0).getPwsPassword());
+        assertEquals(d2, stations.get(1).getDeviceContext());
+        assertEquals("foo2", stations.get(1).getPwsId());
+        assertEquals("b,a:r ", stations.get(1).getPwsPassword());
+
+        // an existing station keeps its state when its password changes
+        Station s2 = stations.get(1);
+        plugin.processAdditionalStations(Arrays.asList(d2), "device2=foo2:new,pass");
+        assertEquals(1, plugin.getAdditionalStations().size());
+        assertSame(s2, plugin.getAdditionalStations().get(0));
+        assertEquals("new", s2.getPwsPassword());
+
+        // other services' credentials aren't trimmed either
+        s2.setCredentials(PwsWeatherUploader.ID, "pws2", " pwd ");
+        assertEquals(" pwd ", s2.getCredentials(PwsWeatherUploader.ID)[1]);
+
+        // stations added while a refresh iterates the list don't disturb it
+        List<Station> before = plugin.getAdditionalStations();
+        plugin.addStation(new Station(d3, "foo3", "bar3"));
+        assertEquals(1, before.size());
+        assertEquals(2, plugin.getAdditionalStations().size());
+
+        assertTrue(WeatherUndergroundPlugin.parseStationBindings(null).isEmpty());
+        assertTrue(WeatherUndergroundPlugin.parseStationBindings("device2=:bar,=foo:bar,device3").isEmpty());
+    }
+
+    @Test
+    public void testRapidFireUpdate() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setRapidFire(true, 2500, 10);
+
+        try {
+            wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+            // periodic refreshes are bypassed in RapidFire mode
+            plugin.onRefresh(now);
+            assertEquals(0, channel.getURICount());
+
+            // unmapped variables and other devices are ignored
+            plugin.onVariableUpdate(DeviceVariableContext.create(wsDevice.getContext(), "foo"), now);
+            plugin.onVariableUpdate(DeviceVariableContext.create(DeviceContext.createLocal("plugin1", "device2"), VariableConstants.OUTDOOR_TEMP_F), now);
+            Thread.sleep(100);
+            assertEquals(0, channel.getURICount());
+
+            // multiple changes within the window are coalesced into a single upload
+            plugin.onVariableUpdate(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), now);
+            plugin.onVariableUpdate(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), now);
+            assertTrue(channel.waitForURICount(1, 2000));
+            Thread.sleep(100);
+            assertEquals(1, channel.getURICount());
+            assertEquals("http://rtupdate.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&tempf=72.5&realtime=1&rtfreq=2.5", channel.getURI(0).toASCIIString());
+        } finally {
+            plugin.onShutdown();
+        }
+    }
+
+    @Test
+    public void testOutboxReplay() throws Exception {
+        long now = 1433160000000L; // 2015-06-01 12:00:00 UTC
+
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+        ObservationOutbox outbox = new ObservationOutbox(f, 10);
+        plugin.setOutbox(outbox, 0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        // a failed upload should be retained
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        plugin.onHttpRequestFailure(new Exception(), channel.getContext(0));
+        assertEquals(1, outbox.size());
+
+        // nothing is replayed while the link is down
+        plugin.drainOutbox();
+        assertEquals(1, channel.getURICount());
+
+        // a successful upload should trigger replay with the original timestamp
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(2, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(1));
+        assertEquals(1, outbox.size());
+
+        plugin.drainOutbox();
+        assertEquals(3, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=2015-06-01+12%3A00%3A00&tempf=72.5", channel.getURI(2).toASCIIString());
+
+        // only one replay is in flight at a time
+        plugin.drainOutbox();
+        assertEquals(3, channel.getURICount());
+
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(2));
+        assertEquals(0, outbox.size());
+
+        // rejected observations are not retained
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 74.5, now + 2000);
+        plugin.onRefresh(now + 2000);
+        assertEquals(4, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(400, "bad request"), channel.getContext(3));
+        assertEquals(0, outbox.size());
+
+        plugin.onShutdown();
+    }
+
+    @Test
+    public void testOutboxNotReplayedAfterAuthFailure() throws Exception {
+        long now = 1433160000000L; // 2015-06-01 12:00:00 UTC
+
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+        ObservationOutbox outbox = new ObservationOutbox(f, 10);
+        plugin.setOutbox(outbox, 0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        plugin.onHttpRequestFailure(new Exception(), channel.getContext(0));
+        assertEquals(1, outbox.size());
+
+        // the service is reachable again but the credentials are rejected
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        plugin.onHttpResponse(new MockHttpResponse(200, "INVALIDPASSWORDID|Password or key and/or id are incorrect"), channel.getContext(1));
+        assertEquals(2, channel.getURICount());
+
+        // so retained observations aren't re-sent with the same credentials
+        for (int i=0; i < 3; i++) {
+            plugin.drainOutbox();
+        }
+        assertEquals(2, channel.getURICount());
+        assertTrue(outbox.size() > 0);
+
+        // until the station is reconfigured
+        plugin.setPwsPassword("bar2");
+        plugin.drainOutbox();
+        assertEquals(3, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar2&dateutc=2015-06-01+12%3A00%3A00&tempf=72.5", channel.getURI(2).toASCIIString());
+
+        plugin.onShutdown();
+    }
+
+    @Test
+    public void testAdaptiveRefresh() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setMaxSilence(900000);
+        // by default the refresh interval never drops below the fixed interval it replaced
+        assertEquals(300, plugin.getRefreshInterval());
+        plugin.setRefreshBounds(60000, 900000);
+        assertEquals(60, plugin.getRefreshInterval());
+        assertEquals(AdaptiveRefreshScheduler.Reason.INITIAL, plugin.getRefreshDecision().getReason());
+
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        // a changed station shortens the interval
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        assertEquals(AdaptiveRefreshScheduler.Reason.FAST_CHANGE, plugin.getRefreshDecision().getReason());
+        assertEquals(150000, plugin.getRefreshDecision().getIntervalMs());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+
+        // an unchanged station lengthens it
+        plugin.onRefresh(now + 150000);
+        assertEquals(1, channel.getURICount());
+        assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, plugin.getRefreshDecision().getReason());
+        assertEquals(225000, plugin.getRefreshDecision().getIntervalMs());
+
+        // a check before the refresh is due doesn't refresh
+        plugin.refreshWhenDue();
+        assertEquals(1, channel.getURICount());
+        assertEquals(225000, plugin.getRefreshDecision().getIntervalMs());
+
+        // a configuration change keeps the learned interval
+        plugin.setRefreshBounds(60000, 900000);
+        assertEquals(AdaptiveRefreshScheduler.Reason.IDLE, plugin.getRefreshDecision().getReason());
+        assertEquals(225000, plugin.getRefreshDecision().getIntervalMs());
+    }
+
+    @Test
+    public void testUploadStateRestore() throws Exception {
+        long now = System.currentTimeMillis();
+
+        File f = File.createTempFile("state", ".properties");
+        f.deleteOnExit();
+        plugin.setUploadStateStore(new UploadStateStore(f));
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        assertTrue(f.length() > 0);
+
+        // a restarted plugin doesn't re-send the value that was already uploaded
+        channel.clear();
+        WeatherUndergroundPlugin plugin2 = new WeatherUndergroundPlugin("plugin2", null, null, channel);
+        plugin2.setDeviceManager(dm);
+        plugin2.setEventManager(new MockEventManager());
+        plugin2.setDeviceContext(wsDevice.getContext());
+        plugin2.setPwsId("foo");
+        plugin2.setPwsPassword("bar");
+        plugin2.setUploadStateStore(new UploadStateStore(f));
+        plugin2.onRefresh(now + 1000);
+        assertEquals(0, channel.getURICount());
+        assertEquals(1, plugin2.getMetrics().getNoNewDataCount());
+
+        // an unchanged value with a newer timestamp is a new reading, which the deadband then suppresses
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.5, now + 1200);
+        plugin2.onRefresh(now + 1300);
+        assertEquals(0, channel.getURICount());
+        assertEquals(1, plugin2.getMetrics().getNoNewDataCount());
+        assertEquals(1, plugin2.getMetrics().getSuppressedCount());
+
+        // but does send new values
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1500);
+        plugin2.onRefresh(now + 2000);
+        assertEquals(1, channel.getURICount());
+    }
+
+    @Test
+    public void testBackfillImport() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        File log = StationLogReaderTest.createLog("time,tempf,humidity\n1431000000,70,40\n");
+        File checkpoint = File.createTempFile("import", ".properties");
+        checkpoint.deleteOnExit();
+
+        // imported rows are sent with their original timestamps
+        BackfillImport bi = new BackfillImport(log, checkpoint, 2, 60, new RetryPolicy(0, 0, 0), plugin);
+        bi.open();
+        bi.pump(now);
+        assertEquals(1, channel.getURICount());
+        assertEquals(WundergroundUploader.UPDATE_URL + "?ID=foo&PASSWORD=bar&dateutc=" + WeatherUndergroundPlugin.formatDateUtc(1431000000000L) + "&tempf=70&humidity=40", channel.getURI(0).toString());
+        assertEquals(1, plugin.getInFlightCount());
+
+        // imports don't occupy the station's request window
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+        plugin.onRefresh(now);
+        assertEquals(2, channel.getURICount());
+
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        assertTrue(bi.isFinished());
+        assertEquals(1, plugin.getInFlightCount());
+    }
+
+    @Test
+    public void testImportsUseSpareSlots() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setMaxConcurrentUploads(1);
+        File log = StationLogReaderTest.createLog("time,tempf\n1431000000,70\n1431000060,71\n");
+        File checkpoint = File.createTempFile("import", ".properties");
+        checkpoint.deleteOnExit();
+
+        BackfillImport bi = new BackfillImport(log, checkpoint, 2, 6000, new RetryPolicy(0, 0, 0), plugin);
+        bi.open();
+        bi.pump(now);
+        assertEquals(1, channel.getURICount());
+
+        // a live upload waits for the slot the import row holds
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+
+        // and is sent ahead of the next import row once the slot is freed
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        assertEquals(2, channel.getURICount());
+        assertEquals("http://weatherstation.wunderground.com/weatherstation/updateweatherstation.php?ID=foo&PASSWORD=bar&dateutc=now&tempf=72.5", channel.getURI(1).toASCIIString());
+        bi.pump(now + 1000);
+        assertEquals(2, channel.getURICount());
+
+        // the import resumes when a slot is spare
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(1));
+        bi.pump(now + 2000);
+        assertEquals(3, channel.getURICount());
+        assertTrue(channel.getURI(2).toString().contains("dateutc=" + WeatherUndergroundPlugin.formatDateUtc(1431000060000L)));
+    }
+
+    @Test
+    public void testRequestDeadline() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setRequestLimits(1, 30000);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        assertTrue(plugin.hasPendingRequest());
+        assertEquals(1, plugin.getInFlightCount());
+
+        // the request is retained until its deadline passes
+        plugin.expireRequests(System.currentTimeMillis() + 29000);
+        assertTrue(plugin.hasPendingRequest());
+        plugin.expireRequests(System.currentTimeMillis() + 31000);
+        assertFalse(plugin.hasPendingRequest());
+        assertEquals(0, plugin.getInFlightCount());
+        assertEquals(1, plugin.getMetrics().getTimeoutCount());
+        assertEquals(1, plugin.getMetrics().getFailureCount());
+
+        // a late response for the abandoned request is ignored
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        assertEquals(0, plugin.getMetrics().getSuccessCount());
+
+        // the station can upload again
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(2, channel.getURICount());
+    }
+
+    @Test
+    public void testRequestWindow() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setRequestLimits(2, 30000);
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        // two requests can be in flight for the station
+        plugin.onRefresh(now);
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(2, channel.getURICount());
+        assertEquals(2, plugin.getInFlightCount());
+
+        // but not three
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 74.5, now + 2000);
+        plugin.onRefresh(now + 2000);
+        assertEquals(2, channel.getURICount());
+
+        // responses are matched to their requests regardless of order
+        assertTrue(((UploadRequest)channel.getContext(0)).getId() != ((UploadRequest)channel.getContext(1)).getId());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(1));
+        assertEquals(1, plugin.getInFlightCount());
+        assertTrue(plugin.hasPendingRequest());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(1));
+        assertEquals(1, plugin.getInFlightCount());
+        assertEquals(1, plugin.getMetrics().getSuccessCount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        assertEquals(0, plugin.getInFlightCount());
+        assertFalse(plugin.hasPendingRequest());
+    }
+
+    @Test
+    public void testRetry() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setRetryPolicy(new RetryPolicy(2, 20, 20));
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        try {
+            plugin.onRefresh(now);
+            assertEquals(1, channel.getURICount());
+
+            // a server error is retried after a delay with the same URL
+            plugin.onHttpResponse(new MockHttpResponse(503, "unavailable"), channel.getContext(0));
+            assertEquals(1, channel.getURICount());
+            assertTrue(channel.waitForURICount(2, 2000));
+            assertEquals(channel.getURI(0), channel.getURI(1));
+            assertEquals(1, plugin.getMetrics().getRetryCount());
+
+            // the station isn't refreshed while the retry is outstanding
+            wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+            plugin.onRefresh(now + 1000);
+            assertEquals(2, channel.getURICount());
+
+            // rejected requests aren't retried
+            plugin.onHttpResponse(new MockHttpResponse(400, "bad request"), channel.getContext(1));
+            Thread.sleep(100);
+            assertEquals(2, channel.getURICount());
+            assertEquals(1, plugin.getMetrics().getRetryCount());
+        } finally {
+            plugin.onShutdown();
+        }
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        long now = System.currentTimeMillis();
+
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+        ObservationOutbox outbox = new ObservationOutbox(f, 10);
+        plugin.setOutbox(outbox, 0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+        plugin.setCircuitBreaker(new CircuitBreaker(2, 60000, 60000));
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        // two consecutive failures open the circuit
+        for (int i=0; i < 2; i++) {
+            wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 72.5 + i, now + i);
+            plugin.onRefresh(now + i);
+            assertEquals(i + 1, channel.getURICount());
+            plugin.onHttpRequestFailure(new Exception(), channel.getContext(i));
+        }
+        assertEquals(2, outbox.size());
+
+        // while it's open observations go straight to the outbox
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 80, now + 10);
+        plugin.onRefresh(now + 10);
+        assertEquals(2, channel.getURICount());
+        assertEquals(3, outbox.size());
+        assertFalse(plugin.hasPendingRequest());
+
+        plugin.onShutdown();
+    }
+
+    @Test
+    public void testRejectedProbeClosesCircuit() throws Exception {
+        long now = System.currentTimeMillis();
+
+        File f = File.createTempFile("outbox", ".dat");
+        f.deleteOnExit();
+        ObservationOutbox outbox = new ObservationOutbox(f, 10);
+        plugin.setOutbox(outbox, 0);
+        plugin.setRetryPolicy(new RetryPolicy(0, 0, 0));
+        CircuitBreaker cb = new CircuitBreaker(1, 0, 0);
+        plugin.setCircuitBreaker(cb);
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        // a failure opens the circuit
+        plugin.onRefresh(now);
+        plugin.onHttpRequestFailure(new Exception(), channel.getContext(0));
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        assertEquals(1, outbox.size());
+
+        // the probe is rejected, which still shows the service is reachable
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(2, channel.getURICount());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, cb.getState());
+        plugin.onHttpResponse(new MockHttpResponse(400, "bad request"), channel.getContext(1));
+        assertTrue(cb.isClosed());
+
+        // so uploads and replays resume
+        plugin.drainOutbox();
+        assertEquals(3, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(2));
+        assertEquals(0, outbox.size());
+
+        // a probe whose credentials are rejected closes it too
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 74.5, now + 2000);
+        plugin.onRefresh(now + 2000);
+        plugin.onHttpRequestFailure(new Exception(), channel.getContext(3));
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 75.5, now + 3000);
+        plugin.onRefresh(now + 3000);
+        assertEquals(5, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "INVALIDPASSWORDID|Password or key and/or id are incorrect"), channel.getContext(4));
+        assertTrue(cb.isClosed());
+
+        plugin.onShutdown();
+    }
+
+    @Test
+    public void testAuthenticationFailure() {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertEquals(1, channel.getURICount());
+        plugin.onHttpResponse(new MockHttpResponse(200, "INVALIDPASSWORDID|Password or key and/or id are incorrect"), channel.getContext(0));
+        assertEquals(0, plugin.getMetrics().getRetryCount());
+
+        // no further updates are sent until the station is reconfigured
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 73.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(1, channel.getURICount());
+
+        plugin.setPwsPassword("bar2");
+        plugin.onRefresh(now + 2000);
+        assertEquals(2, channel.getURICount());
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setCredentials(PwsWeatherUploader.ID, "pws1", "pwd");
+        plugin.setCredentials(WowUploader.ID, "wow1", "key");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertEquals(3, channel.getURICount());
+        assertEquals(3, plugin.getInFlightCount());
+        String date = WeatherUndergroundPlugin.formatDateUtc(now);
+        assertEquals(WundergroundUploader.UPDATE_URL + "?ID=foo&PASSWORD=bar&dateutc=now&tempf=72.5", channel.getURI(0).toString());
+        assertEquals(PwsWeatherUploader.UPDATE_URL + "?ID=pws1&PASSWORD=pwd&dateutc=" + date + "&tempf=72.5&softwaretype=Hobson&action=updateraw", channel.getURI(1).toString());
+        assertEquals(WowUploader.UPDATE_URL + "?siteid=wow1&siteAuthenticationKey=key&dateutc=" + date + "&tempf=72.5&softwaretype=Hobson", channel.getURI(2).toString());
+
+        // each response is classified by its own service
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        plugin.onHttpResponse(new MockHttpResponse(200, "Data Logged and posted"), channel.getContext(1));
+        plugin.onHttpResponse(new MockHttpResponse(200, "{}"), channel.getContext(2));
+        assertEquals(3, plugin.getMetrics().getSuccessCount());
+        assertFalse(plugin.hasPendingRequest());
+
+        // the other services are rate limited
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 74.5, now + 1000);
+        plugin.onRefresh(now + 1000);
+        assertEquals(4, channel.getURICount());
+        assertTrue(channel.getURI(3).toString().startsWith(WundergroundUploader.UPDATE_URL));
+    }
+
+    @Test
+    public void testDestinationsAreIndependent() throws Exception {
+        long now = System.currentTimeMillis();
+
+        plugin.setPwsId("foo");
+        plugin.setPwsPassword("bar");
+        plugin.setCredentials(PwsWeatherUploader.ID, "pws1", "pwd");
+        plugin.setCredentials(WowUploader.ID, "wow1", "key");
+        wsDevice.publishVariables(new DeviceProxyVariable(DeviceVariableContext.create(wsDevice.getContext(), VariableConstants.OUTDOOR_TEMP_F), VariableMask.READ_ONLY, 72.5, now));
+
+        plugin.onRefresh(now);
+        assertEquals(3, channel.getURICount());
+
+        // Weather Underground doesn't respond and PWSWeather rejects the credentials
+        plugin.onHttpResponse(new MockHttpResponse(200, "ERROR: Not a vailid Station ID or Password"), channel.getContext(1));
+        plugin.onHttpResponse(new MockHttpResponse(200, "{}"), channel.getContext(2));
+        assertTrue(plugin.hasPendingRequest());
+
+        // only WOW receives the next observation
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 74.5, now + 60000);
+        plugin.onRefresh(now + 60000);
+        assertEquals(4, channel.getURICount());
+        assertTrue(channel.getURI(3).toString().startsWith(WowUploader.UPDATE_URL));
+        assertTrue(channel.getURI(3).toString().contains("&tempf=74.5&"));
+
+        // Weather Underground resumes once its request completes
+        plugin.onHttpResponse(new MockHttpResponse(200, "success"), channel.getContext(0));
+        wsDevice.setVariableValue(VariableConstants.OUTDOOR_TEMP_F, 76.5, now + 61000);
+        plugin.onRefresh(now + 61000);
+        assertEquals(5, channel.getURICount());
+        assertTrue(channel.getURI(4).toString().startsWith(WundergroundUploader.UPDATE_URL));
+    }
 }
@@ -0,0 +1,39 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.wunderground;
+
+import com.whizzosoftware.hobson.api.variable.VariableConstants;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class WeatherVariableTest {
+    @Test
+    public void testForName() {
+        assertEquals(WeatherVariable.OUTDOOR_TEMP, WeatherVariable.forName(VariableConstants.OUTDOOR_TEMP_F));
+        assertEquals(WeatherVariable.WIND_GUST, WeatherVariable.forName(WeatherStationVariables.WIND_GUST_MPH));
+        assertNull(WeatherVariable.forName("foo"));
+        assertNull(WeatherVariable.forName(null));
+    }
+
+    @Test
+    public void testUniqueMappings() {
+        Set<String> names = new HashSet<>();
+        Set<String> params = new HashSet<>();
+        for (WeatherVariable wv : WeatherVariable.all()) {
+            assertTrue(names.add(wv.getVariableName()));
+            assertTrue(params.add(wv.getQueryParameter()));
+        }
+        assertEquals(WeatherVariable.count(), names.size());
+    }
+}